@@ -1,29 +1,67 @@
 package analyze;
 
+import java.lang.ref.WeakReference;
+import java.util.AbstractList;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.RandomAccess;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class AST {
 }
 
 interface Expr {
     Object eval(Env env);
+
+    // Unboxed entry points; nodes that know their result type override these.
+    default double evalDouble(Env env) throws UnexpectedResultException {
+        Object v = eval(env);
+        if (v instanceof Double d) return d;
+        throw new UnexpectedResultException(v);
+    }
+
+    default boolean evalBoolean(Env env) {
+        return Env.isTruthy(eval(env));
+    }
+
+    // Numeric value with the usual toNumber coercion for non-double results.
+    default double evalNumber(Env env) {
+        try {
+            return evalDouble(env);
+        } catch (UnexpectedResultException e) {
+            return Env.toNumber(e.result);
+        }
+    }
 }
 
 class NumExpr implements Expr {
     double v;
+    Double boxed;
     int line;
     int col;
 
     NumExpr(double v, int line, int col) {
         this.v = v;
+        this.boxed = v;
         this.line = line;
         this.col = col;
     }
 
     public Object eval(Env env) {
+        return boxed;
+    }
+
+    @Override
+    public double evalDouble(Env env) {
         return v;
     }
 }
@@ -34,7 +72,7 @@ class StrExpr implements Expr {
     int col;
 
     StrExpr(String v, int line, int col) {
-        this.v = v;
+        this.v = v.length() == 1 ? ScriptString.ofChar(v.charAt(0)) : v;
         this.line = line;
         this.col = col;
     }
@@ -58,6 +96,11 @@ class BoolExpr implements Expr {
     public Object eval(Env env) {
         return v;
     }
+
+    @Override
+    public boolean evalBoolean(Env env) {
+        return v;
+    }
 }
 
 class ConstExpr implements Expr {
@@ -99,9 +142,41 @@ class TypeLiteral {
 
 class FunctionRef {
     final String name;
+    // Call target, cached for the function table version it was resolved in.
+    Builtin builtin;
+    Function function;
+    private int version;
 
-    FunctionRef(String name) {
+    FunctionRef(String name, FunctionTable funcs) {
         this.name = name;
+        resolve(funcs);
+    }
+
+    // Brings builtin/function up to date with funcs; both are null if name is undefined.
+    void resolve(FunctionTable funcs) {
+        if (version == funcs.version && (builtin != null || function != null)) return;
+        builtin = Builtins.get(name, funcs);
+        function = builtin == null ? funcs.get(name) : null;
+        version = funcs.version;
+    }
+
+    Object call(Env env, List<Expr> args, int line, int col) {
+        return call(env, args, line, col, false);
+    }
+
+    // With tail set, a script function is not called but returned as a TailCall.
+    Object call(Env env, List<Expr> args, int line, int col, boolean tail) {
+        resolve(env.funcs);
+        if (builtin != null) {
+            return builtin.call(env, args, line, col);
+        }
+        if (function == null) {
+            throw new ScriptRuntimeException("Undefined function " + name, line, col, env);
+        }
+        if (tail) {
+            return new TailCall(env, name, function, args, line, col);
+        }
+        return env.call(name, function, args, line, col);
     }
 }
 
@@ -117,11 +192,11 @@ class ListExpr implements Expr {
     }
 
     public Object eval(Env env) {
-        List<Object> out = new ArrayList<>();
-        for (Expr e : items) {
-            out.add(e.eval(env));
+        Object[] out = new Object[items.size()];
+        for (int i = 0; i < out.length; i++) {
+            out[i] = ScriptString.flat(items.get(i).eval(env));
         }
-        return out;
+        return ScriptList.of(out);
     }
 }
 
@@ -138,8 +213,8 @@ class DictKey {
         if (literal) return name;
         if (env.has(name)) {
             Object v = env.get(name);
-            if (v instanceof String s) return s;
-            throw new ScriptRuntimeException("Dictionary key must be string", line, col, env.stackSnapshot());
+            if (v instanceof CharSequence s) return s.toString();
+            throw new ScriptRuntimeException("Dictionary key must be string", line, col, env);
         }
         return name;
     }
@@ -158,17 +233,150 @@ class DictExpr implements Expr {
         this.col = col;
     }
 
+    // For literals whose keys are all fixed: the Shape they build and each key's slot.
+    // One record, so a thread never sees the Shape without its slots.
+    private record Layout(Shape shape, int[] slots) {
+    }
+
+    private Layout layout;
+
     public Object eval(Env env) {
+        Layout layout = this.layout;
+        if (layout == null && allLiteral()) {
+            Shape s = Shape.EMPTY;
+            int[] at = new int[keys.size()];
+            for (int i = 0; i < at.length; i++) {
+                String k = keys.get(i).name;
+                int slot = s.slot(k);
+                if (slot < 0) {
+                    s = s.with(k);
+                    slot = s.size() - 1;
+                }
+                at[i] = slot;
+            }
+            layout = new Layout(s, at);
+            this.layout = layout;
+        }
+        if (layout != null) {
+            int[] slots = layout.slots;
+            Object[] out = new Object[layout.shape.size()];
+            for (int i = 0; i < slots.length; i++) {
+                out[slots[i]] = ScriptString.flat(values.get(i).eval(env));
+            }
+            return new ScriptMap(layout.shape, out);
+        }
         Map<String, Object> out = new ScriptMap();
         for (int i = 0; i < keys.size(); i++) {
             String k = keys.get(i).resolve(env, line, col);
-            out.put(k, values.get(i).eval(env));
+            out.put(k, ScriptString.flat(values.get(i).eval(env)));
         }
         return out;
     }
+
+    private boolean allLiteral() {
+        for (DictKey k : keys) {
+            if (!k.literal) return false;
+        }
+        return true;
+    }
 }
 
-class ScriptMap extends LinkedHashMap<String, Object> {
+/**
+ * Structure value. Structures that got the same keys in the same order share a Shape,
+ * which maps each key to a slot of the structure's values array, so a structure costs
+ * little more than that array and field reads can be cached per Shape. One that grows
+ * past DICTIONARY_MIN_KEYS keys is treated as a dictionary and keeps a hash map instead.
+ */
+class ScriptMap extends AbstractMap<String, Object> {
+    private static final int DICTIONARY_MIN_KEYS = 32;
+    private static final Object[] NO_VALUES = new Object[0];
+
+    // Null once the structure is in dictionary mode.
+    Shape shape = Shape.EMPTY;
+    Object[] values = NO_VALUES;
+    private Map<String, Object> dictionary;
+
+    ScriptMap() {
+    }
+
+    ScriptMap(Shape shape, Object[] values) {
+        this.shape = shape;
+        this.values = values;
+    }
+
+    @Override
+    public Object get(Object key) {
+        if (shape == null) return dictionary.get(key);
+        int slot = key instanceof String k ? shape.slot(k) : -1;
+        return slot < 0 ? null : values[slot];
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        if (shape == null) return dictionary.containsKey(key);
+        return key instanceof String k && shape.slot(k) >= 0;
+    }
+
+    @Override
+    public Object put(String key, Object value) {
+        if (shape == null) return dictionary.put(key, value);
+        int slot = shape.slot(key);
+        if (slot >= 0) {
+            Object old = values[slot];
+            values[slot] = value;
+            return old;
+        }
+        if (shape.size() >= DICTIONARY_MIN_KEYS) {
+            dictionary = new LinkedHashMap<>(this);
+            shape = null;
+            values = null;
+            return dictionary.put(key, value);
+        }
+        shape = shape.with(key);
+        if (values.length < shape.size()) {
+            values = Arrays.copyOf(values, Math.max(4, values.length * 2));
+        }
+        values[shape.size() - 1] = value;
+        return null;
+    }
+
+    @Override
+    public int size() {
+        return shape == null ? dictionary.size() : shape.size();
+    }
+
+    @Override
+    public Set<Map.Entry<String, Object>> entrySet() {
+        if (shape == null) return dictionary.entrySet();
+        Shape s = shape;
+        Object[] v = values;
+        return new AbstractSet<>() {
+            @Override
+            public Iterator<Map.Entry<String, Object>> iterator() {
+                return new Iterator<>() {
+                    private int i;
+
+                    @Override
+                    public boolean hasNext() {
+                        return i < s.size();
+                    }
+
+                    @Override
+                    public Map.Entry<String, Object> next() {
+                        if (i >= s.size()) throw new NoSuchElementException();
+                        int slot = i++;
+                        return new AbstractMap.SimpleImmutableEntry<>(s.keys[slot], v[slot]);
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return s.size();
+            }
+        };
+    }
+
     @Override
     public String toString() {
         if (isEmpty()) return "<>";
@@ -185,6 +393,385 @@ class ScriptMap extends LinkedHashMap<String, Object> {
     }
 }
 
+/**
+ * Key layout shared by structures: the keys in insertion order, the slot of each being
+ * its position. Adding a key moves to a child Shape, reused by every structure that
+ * takes the same path while any of them is alive. A Shape holds its children weakly and
+ * its parent strongly, so the tree keeps only the paths to shapes still in use, and
+ * keys computed at run time do not pile up across runs.
+ */
+final class Shape {
+    static final Shape EMPTY = new Shape(null, new String[0]);
+    // Shapes up to this size find slots by scanning keys.
+    private static final int SCAN_MAX_KEYS = 8;
+    // Transitions a Shape may have before it drops those of collected children.
+    private static final int PURGE_MIN_TRANSITIONS = 16;
+
+    final String[] keys;
+    private final Map<String, Integer> slots;
+    // Keeps the path from EMPTY alive as long as this shape is.
+    private final Shape parent;
+    private final Map<String, WeakReference<Shape>> transitions = new ConcurrentHashMap<>();
+    // Guarded by this.
+    private int purgeAt = PURGE_MIN_TRANSITIONS;
+
+    private Shape(Shape parent, String[] keys) {
+        this.parent = parent;
+        this.keys = keys;
+        if (keys.length > SCAN_MAX_KEYS) {
+            slots = new HashMap<>();
+            for (int i = 0; i < keys.length; i++) slots.put(keys[i], i);
+        } else {
+            slots = null;
+        }
+    }
+
+    int size() {
+        return keys.length;
+    }
+
+    // Slot of key, or -1 if structures of this shape do not have it.
+    int slot(String key) {
+        if (slots != null) {
+            Integer slot = slots.get(key);
+            return slot == null ? -1 : slot;
+        }
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i].equals(key)) return i;
+        }
+        return -1;
+    }
+
+    Shape with(String key) {
+        WeakReference<Shape> ref = transitions.get(key);
+        Shape next = ref == null ? null : ref.get();
+        return next != null ? next : add(key);
+    }
+
+    private synchronized Shape add(String key) {
+        WeakReference<Shape> ref = transitions.get(key);
+        Shape next = ref == null ? null : ref.get();
+        if (next != null) return next;
+        if (transitions.size() >= purgeAt) {
+            transitions.values().removeIf(r -> r.get() == null);
+            purgeAt = Math.max(PURGE_MIN_TRANSITIONS, transitions.size() * 2);
+        }
+        String[] grown = Arrays.copyOf(keys, keys.length + 1);
+        grown[keys.length] = key;
+        next = new Shape(this, grown);
+        transitions.put(key, new WeakReference<>(next));
+        return next;
+    }
+}
+
+/**
+ * List value. While every element is a number the list keeps them unboxed in a
+ * double[]; storing anything else switches it to an Object[] for good. Several lists
+ * can share one backing array, each seeing a prefix of it; the list that sees all of it
+ * appends in place, so a loop of {@code list = list + [x]} is linear. That list also
+ * writes in place: past the prefix the others see, directly, and inside it by moving
+ * the arrays on to a new Backing and leaving the old one to remember the overwritten
+ * element for them. Any other list copies before it writes.
+ */
+class ScriptList extends AbstractList<Object> implements RandomAccess {
+    private static final class Backing {
+        // nums while every element is a Double, data once one is not; never both.
+        double[] nums;
+        Object[] data;
+        int size;
+        // Other lists read the indexes below this through this Backing.
+        int viewed;
+        // Set once a write moved the arrays on: this Backing then stands for next with
+        // the element at changedIndex still being changedValue. Its own arrays are stale.
+        Backing next;
+        int changedIndex;
+        Object changedValue;
+        // Backings the arrays moved through since they were last copied.
+        int moves;
+
+        void ensure(int capacity) {
+            if (nums != null && capacity > nums.length) {
+                nums = Arrays.copyOf(nums, Math.max(capacity, nums.length * 2));
+            } else if (data != null && capacity > data.length) {
+                data = Arrays.copyOf(data, Math.max(capacity, data.length * 2));
+            }
+        }
+
+        void box() {
+            if (nums == null) return;
+            Object[] out = new Object[nums.length];
+            for (int i = 0; i < size; i++) out[i] = nums[i];
+            data = out;
+            nums = null;
+        }
+
+        Backing copy(int length) {
+            Backing b = new Backing();
+            b.size = length;
+            if (nums != null) {
+                b.nums = Arrays.copyOf(nums, length);
+            } else {
+                b.data = Arrays.copyOf(data, length);
+            }
+            return b;
+        }
+
+        // Hands the arrays to a new Backing for a write at index, which held old.
+        Backing moveOn(int index, Object old) {
+            Backing b = new Backing();
+            b.nums = nums;
+            b.data = data;
+            b.size = size;
+            b.viewed = viewed;
+            b.moves = moves + 1;
+            changedIndex = index;
+            changedValue = old;
+            next = b;
+            return b;
+        }
+    }
+
+    private Backing backing;
+    private int length;
+
+    private ScriptList(Backing backing, int length) {
+        this.backing = backing;
+        this.length = length;
+    }
+
+    // Takes over items, which the caller must not use afterwards.
+    static ScriptList of(Object[] items) {
+        Backing b = new Backing();
+        b.size = items.length;
+        if (allNumbers(items)) {
+            b.nums = new double[items.length];
+            for (int i = 0; i < items.length; i++) b.nums[i] = (Double) items[i];
+        } else {
+            b.data = items;
+        }
+        return new ScriptList(b, items.length);
+    }
+
+    static ScriptList concat(List<?> left, List<?> right) {
+        if (left instanceof ScriptList sl) {
+            Backing b = sl.backing;
+            synchronized (b) {
+                if (b.next == null && sl.length == b.size) {
+                    b.viewed = b.size;
+                    append(b, right);
+                    return new ScriptList(b, b.size);
+                }
+            }
+        }
+        Backing b = new Backing();
+        b.nums = new double[Math.max(8, (left.size() + right.size()) * 3 / 2)];
+        append(b, left);
+        append(b, right);
+        return new ScriptList(b, b.size);
+    }
+
+    private static void append(Backing b, List<?> items) {
+        int n = items.size();
+        b.ensure(b.size + n);
+        if (b.nums != null) {
+            if (items instanceof ScriptList sl && sl.backing.next == null && sl.backing.nums != null) {
+                System.arraycopy(sl.backing.nums, 0, b.nums, b.size, n);
+                b.size += n;
+                return;
+            }
+            for (int i = 0; i < n; i++) {
+                if (!(items.get(i) instanceof Double)) {
+                    b.box();
+                    break;
+                }
+            }
+        }
+        if (b.nums != null) {
+            for (int i = 0; i < n; i++) b.nums[b.size++] = (Double) items.get(i);
+        } else {
+            for (int i = 0; i < n; i++) b.data[b.size++] = items.get(i);
+        }
+    }
+
+    private static boolean allNumbers(Object[] items) {
+        for (Object item : items) {
+            if (!(item instanceof Double)) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public Object get(int index) {
+        Objects.checkIndex(index, length);
+        Backing b = backing;
+        while (b.next != null) {
+            if (b.changedIndex == index) return b.changedValue;
+            b = b.next;
+        }
+        double[] nums = b.nums;
+        return nums != null ? Env.box(nums[index]) : b.data[index];
+    }
+
+    // Element as a double, without boxing it when the list is numeric.
+    double getDouble(int index) throws UnexpectedResultException {
+        Objects.checkIndex(index, length);
+        Backing b = backing;
+        while (b.next != null) {
+            if (b.changedIndex == index) return unboxed(b.changedValue);
+            b = b.next;
+        }
+        double[] nums = b.nums;
+        return nums != null ? nums[index] : unboxed(b.data[index]);
+    }
+
+    private static double unboxed(Object v) throws UnexpectedResultException {
+        if (v instanceof Double d) return d;
+        throw new UnexpectedResultException(v);
+    }
+
+    @Override
+    public int size() {
+        return length;
+    }
+
+    @Override
+    public Object set(int index, Object element) {
+        Objects.checkIndex(index, length);
+        Object old = get(index);
+        Backing b = backing;
+        synchronized (b) {
+            if (b.next != null || length != b.size) {
+                // Some other list sees further, or a write already moved on from here.
+                b = b.next == null ? b.copy(length) : of(toArray()).backing;
+                backing = b;
+            } else if (index < b.viewed) {
+                // Once the arrays moved on as often as the list is long, a copy that
+                // nobody else sees costs no more and stops the moves.
+                b = b.moves < b.size ? b.moveOn(index, old) : b.copy(length);
+                backing = b;
+            }
+        }
+        if (b.nums != null) {
+            if (element instanceof Double d) {
+                b.nums[index] = d;
+                return old;
+            }
+            b.box();
+        }
+        b.data[index] = element;
+        return old;
+    }
+}
+
+/**
+ * String produced by concatenation. Like ScriptList, several strings can share one
+ * builder, each seeing a prefix of it; the one that sees all of it appends in place, so
+ * a loop of {@code str = str + x} is linear. Only the thread that created the builder
+ * appends to it and reads it directly; on any other thread, as for anything else but
+ * length and charAt, the string is copied to a String once and the copy is cached.
+ */
+final class ScriptString implements CharSequence {
+    // Shorter results stay plain Strings; most concatenations never grow.
+    private static final int MIN_LENGTH = 64;
+    // One-char strings for Latin-1, shared so that character access allocates nothing.
+    private static final String[] CHARS = new String[256];
+
+    static {
+        for (int c = 0; c < CHARS.length; c++) {
+            CHARS[c] = String.valueOf((char) c).intern();
+        }
+    }
+
+    private final StringBuilder buffer;
+    private final Thread owner;
+    private final int length;
+    private String flat;
+
+    private ScriptString(StringBuilder buffer, Thread owner, int length) {
+        this.buffer = buffer;
+        this.owner = owner;
+        this.length = length;
+    }
+
+    static CharSequence concat(Object left, Object right) {
+        CharSequence r = right instanceof CharSequence cs ? cs : String.valueOf(right);
+        if (left instanceof ScriptString ls && ls.owner == Thread.currentThread()) {
+            StringBuilder b = ls.buffer;
+            // Held only while the builder changes, so that a copy taken on another
+            // thread sees a consistent prefix.
+            synchronized (b) {
+                if (ls.length == b.length()) {
+                    b.append(r);
+                    return new ScriptString(b, ls.owner, b.length());
+                }
+            }
+        }
+        CharSequence l = left instanceof CharSequence cs ? cs : String.valueOf(left);
+        int n = l.length() + r.length();
+        if (n < MIN_LENGTH) {
+            return l.toString().concat(r.toString());
+        }
+        StringBuilder b = new StringBuilder(n * 2).append(l).append(r);
+        return new ScriptString(b, Thread.currentThread(), n);
+    }
+
+    static String ofChar(char c) {
+        return c < CHARS.length ? CHARS[c] : String.valueOf(c);
+    }
+
+    // Plain String for values stored into lists, maps and other places that compare
+    // or hash them.
+    static Object flat(Object v) {
+        return v instanceof ScriptString s ? s.toString() : v;
+    }
+
+    static boolean equal(CharSequence a, CharSequence b) {
+        if (a instanceof String s) return s.contentEquals(b);
+        if (b instanceof String s) return s.contentEquals(a);
+        return a.length() == b.length() && a.toString().equals(b.toString());
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        Objects.checkIndex(index, length);
+        String s = flat;
+        if (s != null) return s.charAt(index);
+        return owner == Thread.currentThread() ? buffer.charAt(index) : toString().charAt(index);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return toString().subSequence(start, end);
+    }
+
+    @Override
+    public String toString() {
+        String s = flat;
+        if (s == null) {
+            synchronized (buffer) {
+                s = buffer.substring(0, length);
+            }
+            flat = s;
+        }
+        return s;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof ScriptString other && length == other.length && toString().equals(other.toString());
+    }
+
+    @Override
+    public int hashCode() {
+        return toString().hashCode();
+    }
+}
+
 class IndexExpr implements Expr {
     Expr target;
     Expr index;
@@ -199,35 +786,58 @@ class IndexExpr implements Expr {
     }
 
     public Object eval(Env env) {
+        return get(target.eval(env), env);
+    }
+
+    @Override
+    public double evalDouble(Env env) throws UnexpectedResultException {
+        Object t = target.eval(env);
+        if (t instanceof ScriptList list) {
+            int i;
+            try {
+                i = (int) index.evalNumber(env);
+            } catch (TypeErrorException e) {
+                throw new ScriptRuntimeException(e.getMessage(), line, col, env);
+            }
+            if (i < 0 || i >= list.size()) {
+                throw new ScriptRuntimeException("Index out of bounds: " + i, line, col, env);
+            }
+            return list.getDouble(i);
+        }
+        Object v = get(t, env);
+        if (v instanceof Double d) return d;
+        throw new UnexpectedResultException(v);
+    }
+
+    private Object get(Object t, Env env) {
         try {
-            Object t = target.eval(env);
             if (t instanceof List<?> list) {
-                int i = (int) Env.toNumber(index.eval(env));
+                int i = (int) index.evalNumber(env);
                 if (i < 0 || i >= list.size()) {
-                    throw new ScriptRuntimeException("Index out of bounds: " + i, line, col, env.stackSnapshot());
+                    throw new ScriptRuntimeException("Index out of bounds: " + i, line, col, env);
                 }
                 return list.get(i);
             }
-            if (t instanceof String s) {
-                int i = (int) Env.toNumber(index.eval(env));
+            if (t instanceof CharSequence s) {
+                int i = (int) index.evalNumber(env);
                 if (i < 0 || i >= s.length()) {
-                    throw new ScriptRuntimeException("Index out of bounds: " + i, line, col, env.stackSnapshot());
+                    throw new ScriptRuntimeException("Index out of bounds: " + i, line, col, env);
                 }
-                return String.valueOf(s.charAt(i));
+                return ScriptString.ofChar(s.charAt(i));
             }
             if (t instanceof Map<?, ?> map) {
-                Object k = index.eval(env);
+                Object k = ScriptString.flat(index.eval(env));
                 if (!(k instanceof String ks)) {
-                    throw new ScriptRuntimeException("Indexing expects string key for map", line, col, env.stackSnapshot());
+                    throw new ScriptRuntimeException("Indexing expects string key for map", line, col, env);
                 }
                 if (!map.containsKey(ks)) {
                     return null;
                 }
                 return map.get(ks);
             }
-            throw new ScriptRuntimeException("Indexing expects list, string, or map", line, col, env.stackSnapshot());
+            throw new ScriptRuntimeException("Indexing expects list, string, or map", line, col, env);
         } catch (TypeErrorException e) {
-            throw new ScriptRuntimeException(e.getMessage(), line, col, env.stackSnapshot());
+            throw new ScriptRuntimeException(e.getMessage(), line, col, env);
         }
     }
 }
@@ -250,11 +860,11 @@ class SetIndexExpr implements Expr {
     public Object eval(Env env) {
         try {
             Object t = target.eval(env);
-            Object v = value.eval(env);
+            Object v = ScriptString.flat(value.eval(env));
             if (t instanceof List<?> list) {
-                int i = (int) Env.toNumber(index.eval(env));
+                int i = (int) index.evalNumber(env);
                 if (i < 0 || i >= list.size()) {
-                    throw new ScriptRuntimeException("Index out of bounds: " + i, line, col, env.stackSnapshot());
+                    throw new ScriptRuntimeException("Index out of bounds: " + i, line, col, env);
                 }
                 @SuppressWarnings("unchecked")
                 List<Object> mutable = (List<Object>) list;
@@ -262,18 +872,18 @@ class SetIndexExpr implements Expr {
                 return v;
             }
             if (t instanceof Map<?, ?> map) {
-                Object k = index.eval(env);
+                Object k = ScriptString.flat(index.eval(env));
                 if (!(k instanceof String ks)) {
-                    throw new ScriptRuntimeException("Index assignment expects string key for map", line, col, env.stackSnapshot());
+                    throw new ScriptRuntimeException("Index assignment expects string key for map", line, col, env);
                 }
                 @SuppressWarnings("unchecked")
                 Map<String, Object> mutable = (Map<String, Object>) map;
                 mutable.put(ks, v);
                 return v;
             }
-            throw new ScriptRuntimeException("Index assignment expects list or map", line, col, env.stackSnapshot());
+            throw new ScriptRuntimeException("Index assignment expects list or map", line, col, env);
         } catch (TypeErrorException e) {
-            throw new ScriptRuntimeException(e.getMessage(), line, col, env.stackSnapshot());
+            throw new ScriptRuntimeException(e.getMessage(), line, col, env);
         }
     }
 }
@@ -291,15 +901,41 @@ class GetFieldExpr implements Expr {
         this.col = col;
     }
 
+    static final Object MISSING = new Object();
+
+    // Inline cache: the last structure Shape seen here and the slot of name in it.
+    private record FieldCache(Shape shape, int slot) {
+    }
+
+    private FieldCache cache;
+
     public Object eval(Env env) {
         Object t = target.eval(env);
-        if (t instanceof Map<?, ?> map) {
-            if (!map.containsKey(name)) {
-                throw new ScriptRuntimeException("Missing key: " + name, line, col, env.stackSnapshot());
+        Object v = read(t);
+        if (v == MISSING) {
+            String message = t instanceof Map<?, ?> ? "Missing key: " + name : "Field access expects map";
+            throw new ScriptRuntimeException(message, line, col, env);
+        }
+        return v;
+    }
+
+    // The field's value, or MISSING if t is no structure or has no such key.
+    Object read(Object t) {
+        if (t instanceof ScriptMap map && map.shape != null) {
+            Shape s = map.shape;
+            FieldCache c = cache;
+            if (c == null || c.shape != s) {
+                int slot = s.slot(name);
+                if (slot < 0) return MISSING;
+                c = new FieldCache(s, slot);
+                cache = c;
             }
-            return map.get(name);
+            return map.values[c.slot];
+        }
+        if (t instanceof Map<?, ?> map) {
+            return map.containsKey(name) ? map.get(name) : MISSING;
         }
-        throw new ScriptRuntimeException("Field access expects map", line, col, env.stackSnapshot());
+        return MISSING;
     }
 }
 
@@ -320,7 +956,7 @@ class MethodCallExpr implements Expr {
 
     public Object eval(Env env) {
         target.eval(env);
-        throw new ScriptRuntimeException("Unknown method: " + name, line, col, env.stackSnapshot());
+        throw new ScriptRuntimeException("Unknown method: " + name, line, col, env);
     }
 }
 
@@ -329,6 +965,8 @@ class AssignExpr implements Expr {
     Expr value;
     int line;
     int col;
+    int depth = -1;
+    int slot = -1;
 
     AssignExpr(String name, Expr value, int line, int col) {
         this.name = name;
@@ -339,7 +977,11 @@ class AssignExpr implements Expr {
 
     public Object eval(Env env) {
         Object v = value.eval(env);
-        env.set(name, v);
+        if (depth >= 0) {
+            env.setAt(depth, slot, v);
+        } else {
+            env.set(name, v);
+        }
         return v;
     }
 }
@@ -348,6 +990,8 @@ class VarExpr implements Expr {
     String name;
     int line;
     int col;
+    int depth = -1;
+    int slot = -1;
 
     VarExpr(String n, int line, int col) {
         name = n;
@@ -356,18 +1000,30 @@ class VarExpr implements Expr {
     }
 
     public Object eval(Env env) {
+        if (depth >= 0) return env.getAt(depth, slot);
         if (env.has(name)) return env.get(name);
         Function f = env.getFunction(name);
-        if (f != null) return new FunctionRef(name);
-        throw new ScriptRuntimeException("Undefined variable " + name, line, col, env.stackSnapshot());
+        if (f != null) return new FunctionRef(name, env.funcs);
+        throw new ScriptRuntimeException("Undefined variable " + name, line, col, env);
     }
 }
 
 class BinExpr implements Expr {
+    // Specialization states; the node rewrites itself from UNINITIALIZED to the
+    // narrowest variant its operands allow and falls back to GENERIC for good
+    // once a guard fails. & and | are LOGICAL from the start: they short-circuit
+    // and never evaluate the right operand eagerly.
+    static final int UNINITIALIZED = 0;
+    static final int NUMERIC = 1;
+    static final int STRING = 2;
+    static final int GENERIC = 3;
+    static final int LOGICAL = 4;
+
     Expr l, r;
     TokenType op;
     int line;
     int col;
+    int state = UNINITIALIZED;
 
     BinExpr(Expr l, TokenType op, Expr r, int line, int col) {
         this.l = l;
@@ -375,22 +1031,159 @@ class BinExpr implements Expr {
         this.r = r;
         this.line = line;
         this.col = col;
+        if (op == TokenType.AND || op == TokenType.OR) {
+            state = LOGICAL;
+        }
     }
 
     public Object eval(Env env) {
+        if (state == LOGICAL) {
+            return evalBoolean(env);
+        }
+        if (state == NUMERIC) {
+            double a;
+            try {
+                a = l.evalDouble(env);
+            } catch (UnexpectedResultException e) {
+                return despecialize(e.result, r.eval(env), env);
+            }
+            double b;
+            try {
+                b = r.evalDouble(env);
+            } catch (UnexpectedResultException e) {
+                return despecialize(a, e.result, env);
+            }
+            return isComparison() ? (Object) compareDoubles(a, b) : (Object) arithmetic(a, b);
+        }
+        Object lv = l.eval(env);
+        Object rv = r.eval(env);
+        if (state == STRING) {
+            if (lv instanceof CharSequence ls && rv instanceof CharSequence rs) {
+                return switch (op) {
+                    case PLUS -> ScriptString.concat(ls, rs);
+                    case EQ -> ScriptString.equal(ls, rs);
+                    case NE -> !ScriptString.equal(ls, rs);
+                    default -> compareStrings(CharSequence.compare(ls, rs));
+                };
+            }
+            return despecialize(lv, rv, env);
+        }
+        if (state == UNINITIALIZED) {
+            state = specializeFor(lv, rv);
+        }
+        return evalGeneric(lv, rv, env);
+    }
+
+    @Override
+    public double evalDouble(Env env) throws UnexpectedResultException {
+        if (state == NUMERIC && !isComparison()) {
+            double a;
+            try {
+                a = l.evalDouble(env);
+            } catch (UnexpectedResultException e) {
+                return expectDouble(despecialize(e.result, r.eval(env), env));
+            }
+            double b;
+            try {
+                b = r.evalDouble(env);
+            } catch (UnexpectedResultException e) {
+                return expectDouble(despecialize(a, e.result, env));
+            }
+            return arithmetic(a, b);
+        }
+        return expectDouble(eval(env));
+    }
+
+    @Override
+    public boolean evalBoolean(Env env) {
+        if (state == NUMERIC && isComparison()) {
+            double a;
+            try {
+                a = l.evalDouble(env);
+            } catch (UnexpectedResultException e) {
+                return Env.isTruthy(despecialize(e.result, r.eval(env), env));
+            }
+            double b;
+            try {
+                b = r.evalDouble(env);
+            } catch (UnexpectedResultException e) {
+                return Env.isTruthy(despecialize(a, e.result, env));
+            }
+            return compareDoubles(a, b);
+        }
+        if (state == LOGICAL) {
+            return op == TokenType.AND
+                    ? l.evalBoolean(env) && r.evalBoolean(env)
+                    : l.evalBoolean(env) || r.evalBoolean(env);
+        }
+        return Env.isTruthy(eval(env));
+    }
+
+    private int specializeFor(Object lv, Object rv) {
+        if (lv instanceof Double && rv instanceof Double) return NUMERIC;
+        if (lv instanceof CharSequence && rv instanceof CharSequence
+                && op != TokenType.MINUS && op != TokenType.MUL && op != TokenType.DIV && op != TokenType.MOD) {
+            return STRING;
+        }
+        return GENERIC;
+    }
+
+    private Object despecialize(Object lv, Object rv, Env env) {
+        state = GENERIC;
+        return evalGeneric(lv, rv, env);
+    }
+
+    private boolean isComparison() {
+        return switch (op) {
+            case EQ, NE, GT, GE, LT, LE -> true;
+            default -> false;
+        };
+    }
+
+    private double arithmetic(double a, double b) {
+        return switch (op) {
+            case PLUS -> a + b;
+            case MINUS -> a - b;
+            case MUL -> a * b;
+            case DIV -> a / b;
+            case MOD -> a % b;
+            default -> 0.0;
+        };
+    }
+
+    private boolean compareDoubles(double a, double b) {
+        return switch (op) {
+            // Same semantics as Double.equals, which the generic path uses.
+            case EQ -> Double.doubleToLongBits(a) == Double.doubleToLongBits(b);
+            case NE -> Double.doubleToLongBits(a) != Double.doubleToLongBits(b);
+            default -> compareStrings(Double.compare(a, b));
+        };
+    }
+
+    private boolean compareStrings(int c) {
+        return switch (op) {
+            case GT -> c > 0;
+            case GE -> c >= 0;
+            case LT -> c < 0;
+            case LE -> c <= 0;
+            default -> false;
+        };
+    }
+
+    private static double expectDouble(Object v) throws UnexpectedResultException {
+        if (v instanceof Double d) return d;
+        throw new UnexpectedResultException(v);
+    }
+
+    private Object evalGeneric(Object lv, Object rv, Env env) {
         try {
-            Object lv = l.eval(env);
-            Object rv = r.eval(env);
             return switch (op) {
                 case PLUS -> {
-                    if (lv instanceof java.util.List<?> && rv instanceof java.util.List<?>) {
-                        List<Object> out = new ArrayList<>();
-                        out.addAll((List<?>) lv);
-                        out.addAll((List<?>) rv);
-                        yield out;
+                    if (lv instanceof List<?> ll && rv instanceof List<?> rl) {
+                        yield ScriptList.concat(ll, rl);
                     }
-                    if (lv instanceof String || rv instanceof String) {
-                        yield String.valueOf(lv) + String.valueOf(rv);
+                    if (lv instanceof CharSequence || rv instanceof CharSequence) {
+                        yield ScriptString.concat(lv, rv);
                     }
                     yield Env.toNumber(lv) + Env.toNumber(rv);
                 }
@@ -398,24 +1191,22 @@ class BinExpr implements Expr {
                 case MUL -> Env.toNumber(lv) * Env.toNumber(rv);
                 case DIV -> Env.toNumber(lv) / Env.toNumber(rv);
                 case MOD -> Env.toNumber(lv) % Env.toNumber(rv);
-            case EQ -> java.util.Objects.equals(lv, rv);
-            case NE -> !java.util.Objects.equals(lv, rv);
-            case GT -> compare(lv, rv, env) > 0;
-            case GE -> compare(lv, rv, env) >= 0;
-            case LT -> compare(lv, rv, env) < 0;
-            case LE -> compare(lv, rv, env) <= 0;
-            case AND -> Env.isTruthy(lv) && Env.isTruthy(rv);
-            case OR -> Env.isTruthy(lv) || Env.isTruthy(rv);
+                case EQ -> Env.equal(lv, rv);
+                case NE -> !Env.equal(lv, rv);
+                case GT -> compare(lv, rv, env) > 0;
+                case GE -> compare(lv, rv, env) >= 0;
+                case LT -> compare(lv, rv, env) < 0;
+                case LE -> compare(lv, rv, env) <= 0;
                 default -> 0.0;
             };
         } catch (TypeErrorException e) {
-            throw new ScriptRuntimeException(e.getMessage(), line, col, env.stackSnapshot());
+            throw new ScriptRuntimeException(e.getMessage(), line, col, env);
         }
     }
 
     private int compare(Object lv, Object rv, Env env) {
-        if (lv instanceof String ls && rv instanceof String rs) {
-            return ls.compareTo(rs);
+        if (lv instanceof CharSequence ls && rv instanceof CharSequence rs) {
+            return CharSequence.compare(ls, rs);
         }
         double l = Env.toNumber(lv);
         double r = Env.toNumber(rv);
@@ -445,9 +1236,29 @@ class UnaryExpr implements Expr {
                 default -> v;
             };
         } catch (TypeErrorException e) {
-            throw new ScriptRuntimeException(e.getMessage(), line, col, env.stackSnapshot());
+            throw new ScriptRuntimeException(e.getMessage(), line, col, env);
         }
     }
+
+    @Override
+    public double evalDouble(Env env) throws UnexpectedResultException {
+        if (op != TokenType.MINUS) {
+            return Expr.super.evalDouble(env);
+        }
+        try {
+            return -expr.evalNumber(env);
+        } catch (TypeErrorException e) {
+            throw new ScriptRuntimeException(e.getMessage(), line, col, env);
+        }
+    }
+
+    @Override
+    public boolean evalBoolean(Env env) {
+        if (op == TokenType.NOT) {
+            return !expr.evalBoolean(env);
+        }
+        return Expr.super.evalBoolean(env);
+    }
 }
 
 class CallExpr implements Expr {
@@ -455,6 +1266,13 @@ class CallExpr implements Expr {
     List<Expr> args;
     int line;
     int col;
+    int depth = -1;
+    int slot = -1;
+    // Monomorphic inline cache, bound by link() for one function table version.
+    Builtin builtin;
+    Function function;
+    boolean shadowable = true;
+    int version = -1;
 
     CallExpr(String n, List<Expr> a, int line, int col) {
         name = n;
@@ -463,13 +1281,42 @@ class CallExpr implements Expr {
         this.col = col;
     }
 
+    void link(FunctionTable funcs) {
+        builtin = Builtins.get(name, funcs);
+        function = builtin == null ? funcs.get(name) : null;
+        shadowable = funcs.boundNames.contains(name);
+        version = funcs.version;
+    }
+
     public Object eval(Env env) {
-        if (env.has(name)) {
+        return call(env, false);
+    }
+
+    // Evaluates the call; with tail set (a return of this call), a script function is
+    // returned as a TailCall for the enclosing Env.call to make instead.
+    Object call(Env env, boolean tail) {
+        if (version != env.funcs.version) {
+            link(env.funcs);
+        }
+        if (depth >= 0) {
+            if (env.getAt(depth, slot) instanceof FunctionRef fr) {
+                return fr.call(env, args, line, col, tail);
+            }
+        } else if (shadowable && env.has(name)) {
             Object v = env.get(name);
             if (v instanceof FunctionRef fr) {
-                return env.call(fr.name, args, line, col);
+                return fr.call(env, args, line, col, tail);
+            }
+        }
+        if (builtin != null) {
+            return builtin.call(env, args, line, col);
+        }
+        if (function != null) {
+            if (tail) {
+                return new TailCall(env, name, function, args, line, col);
             }
+            return env.call(name, function, args, line, col);
         }
-        return env.call(name, args, line, col);
+        throw new ScriptRuntimeException("Undefined function " + name, line, col, env);
     }
 }
@@ -0,0 +1,195 @@
+package analyze;
+
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Prints functions back as source text, one function per block, with every binary
+ * operation parenthesized. Used to inspect what the Optimizer produced.
+ */
+public class AstPrinter {
+    private final StringBuilder out = new StringBuilder();
+    private int indent;
+
+    static String print(Map<String, Function> funcs) {
+        AstPrinter p = new AstPrinter();
+        for (Map.Entry<String, Function> e : new TreeMap<>(funcs).entrySet()) {
+            p.function(e.getKey(), e.getValue());
+        }
+        return p.out.toString();
+    }
+
+    private void function(String name, Function f) {
+        out.append("fun ").append(name).append('(').append(String.join(", ", f.params)).append(") ");
+        block(f.body);
+        out.append('\n');
+    }
+
+    private void block(List<Stmt> body) {
+        out.append("{\n");
+        indent++;
+        for (Stmt s : body) {
+            out.append("    ".repeat(indent));
+            stmt(s);
+            out.append('\n');
+        }
+        indent--;
+        out.append("    ".repeat(indent)).append('}');
+    }
+
+    private void stmt(Stmt s) {
+        if (s instanceof VarStmt vs) {
+            out.append("var ").append(vs.name).append(" = ");
+            expr(vs.expr);
+        } else if (s instanceof ExprStmt es) {
+            expr(es.expr);
+        } else if (s instanceof ReturnStmt rs) {
+            out.append("return ");
+            expr(rs.expr);
+        } else if (s instanceof IfStmt is) {
+            out.append("if (");
+            expr(is.cond);
+            out.append(") ");
+            block(is.thenBranch);
+            if (is.elseBranch != null) {
+                out.append(" else ");
+                block(is.elseBranch);
+            }
+        } else if (s instanceof ForStmt fs) {
+            out.append("for (");
+            if (fs.init != null) stmt(fs.init);
+            out.append("; ");
+            if (fs.cond != null) expr(fs.cond);
+            out.append("; ");
+            if (fs.incr != null) expr(fs.incr);
+            out.append(") ");
+            block(fs.body);
+        } else {
+            out.append("<?").append(s.getClass().getSimpleName()).append('>');
+        }
+    }
+
+    private void expr(Expr e) {
+        if (e instanceof NumExpr n) {
+            number(n.v);
+        } else if (e instanceof StrExpr s) {
+            string(s.v);
+        } else if (e instanceof BoolExpr b) {
+            out.append(b.v);
+        } else if (e instanceof ConstExpr c) {
+            out.append(c.v == null ? "null" : c.v.toString());
+        } else if (e instanceof VarExpr v) {
+            out.append(v.name);
+        } else if (e instanceof AssignExpr a) {
+            out.append(a.name).append(" = ");
+            expr(a.value);
+        } else if (e instanceof BinExpr b) {
+            out.append('(');
+            expr(b.l);
+            out.append(' ').append(symbol(b.op)).append(' ');
+            expr(b.r);
+            out.append(')');
+        } else if (e instanceof UnaryExpr u) {
+            out.append(symbol(u.op));
+            expr(u.expr);
+        } else if (e instanceof CallExpr c) {
+            out.append(c.name);
+            args(c.args);
+        } else if (e instanceof ListExpr l) {
+            out.append('[');
+            for (int i = 0; i < l.items.size(); i++) {
+                if (i > 0) out.append(", ");
+                expr(l.items.get(i));
+            }
+            out.append(']');
+        } else if (e instanceof DictExpr d) {
+            out.append('<');
+            for (int i = 0; i < d.keys.size(); i++) {
+                if (i > 0) out.append(", ");
+                DictKey k = d.keys.get(i);
+                if (k.literal) {
+                    string(k.name);
+                } else {
+                    out.append(k.name);
+                }
+                out.append(": ");
+                expr(d.values.get(i));
+            }
+            out.append('>');
+        } else if (e instanceof IndexExpr ix) {
+            expr(ix.target);
+            out.append('[');
+            expr(ix.index);
+            out.append(']');
+        } else if (e instanceof SetIndexExpr sx) {
+            expr(sx.target);
+            out.append('[');
+            expr(sx.index);
+            out.append("] = ");
+            expr(sx.value);
+        } else if (e instanceof GetFieldExpr g) {
+            expr(g.target);
+            out.append('.').append(g.name);
+        } else if (e instanceof MethodCallExpr m) {
+            expr(m.target);
+            out.append('.').append(m.name);
+            args(m.args);
+        } else {
+            out.append("<?").append(e.getClass().getSimpleName()).append('>');
+        }
+    }
+
+    private void args(List<Expr> args) {
+        out.append('(');
+        for (int i = 0; i < args.size(); i++) {
+            if (i > 0) out.append(", ");
+            expr(args.get(i));
+        }
+        out.append(')');
+    }
+
+    private void number(double v) {
+        if (v == Math.rint(v) && Math.abs(v) < 1e15 && !(v == 0 && 1 / v < 0)) {
+            out.append((long) v);
+        } else {
+            out.append(v);
+        }
+    }
+
+    private void string(String s) {
+        out.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"' -> out.append("\\\"");
+                case '\\' -> out.append("\\\\");
+                case '\n' -> out.append("\\n");
+                case '\r' -> out.append("\\r");
+                case '\t' -> out.append("\\t");
+                default -> out.append(c);
+            }
+        }
+        out.append('"');
+    }
+
+    private static String symbol(TokenType op) {
+        return switch (op) {
+            case PLUS -> "+";
+            case MINUS -> "-";
+            case MUL -> "*";
+            case DIV -> "/";
+            case MOD -> "%";
+            case GT -> ">";
+            case LT -> "<";
+            case GE -> ">=";
+            case LE -> "<=";
+            case EQ -> "==";
+            case NE -> "!=";
+            case AND -> "&";
+            case OR -> "|";
+            case NOT -> "!";
+            default -> op.name();
+        };
+    }
+}
@@ -0,0 +1,207 @@
+package analyze;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+interface Builtin {
+    Object call(Env env, List<Expr> args, int line, int col);
+}
+
+public class Builtins {
+    private static final Map<String, Builtin> REGISTRY = new ConcurrentHashMap<>();
+    // Builtins that came after programs could already define functions with their
+    // names; a script function of the same name, own or imported, wins over these.
+    private static final Map<String, Builtin> LIBRARY = new ConcurrentHashMap<>();
+
+    static {
+        register("eval", Builtins::eval);
+        register("println", Builtins::println);
+        register("size", Builtins::size);
+        register("map", Builtins::map);
+        registerLibrary("pmap", Parallel::pmap);
+        registerLibrary("filter", Parallel::filter);
+        registerLibrary("reduce", Parallel::reduce);
+        registerLibrary("spawn", Tasks::spawn);
+        registerLibrary("await", Tasks::await);
+        registerLibrary("channel", Tasks::channel);
+        registerLibrary("send", Tasks::send);
+        registerLibrary("receive", Tasks::receive);
+        registerLibrary("close", Tasks::close);
+        register("readln", Builtins::readln);
+        register("toNumber", Builtins::toNumber);
+        register("toString", Builtins::toStringBuiltin);
+        register("typeOf", Builtins::typeOf);
+    }
+
+    // Builtins shadow script functions of the same name. Call sites are bound when
+    // the program is linked, so registering later only affects code linked after it.
+    static void register(String name, Builtin builtin) {
+        REGISTRY.put(name, builtin);
+    }
+
+    static void registerLibrary(String name, Builtin builtin) {
+        LIBRARY.put(name, builtin);
+    }
+
+    // Builtin a call to name binds to, or null if it calls a function of funcs.
+    static Builtin get(String name, Map<String, Function> funcs) {
+        Builtin builtin = REGISTRY.get(name);
+        if (builtin != null) return builtin;
+        builtin = LIBRARY.get(name);
+        return builtin == null || funcs.containsKey(name) ? null : builtin;
+    }
+
+    private static Object eval(Env env, List<Expr> args, int line, int col) {
+        if (args.size() != 1) {
+            throw new ScriptRuntimeException("eval() expects 1 argument", line, col, env);
+        }
+        Object v = ScriptString.flat(args.get(0).eval(env));
+        if (!(v instanceof String s)) {
+            throw new ScriptRuntimeException("eval() expects a string", line, col, env);
+        }
+        if (env.run.tasks.running() > 0) {
+            throw new ScriptRuntimeException("eval() cannot run while spawned tasks are running", line, col, env);
+        }
+        Parser.ScriptResult res = env.run.evalCache.get(s);
+        if (res == null) {
+            res = parse(env.run, s);
+            env.run.evalCache.put(s, res);
+        } else {
+            // Already linked; putting the functions back restores them if later code
+            // replaced any. Only then does the table version change, so rerunning the
+            // same eval() keeps every call site's cached target.
+            env.funcs.putAll(res.funcs);
+        }
+        Expr tail = res.tail;
+        if (tail != null) {
+            return tail.eval(env);
+        }
+        if (res.funcs.containsKey("main")) {
+            return env.call("main", List.of(), line, col);
+        }
+        return null;
+    }
+
+    // Parses, optimizes, resolves and links eval() source into the run's functions. The
+    // result is only read afterwards, so the cache can hand it out again.
+    private static Parser.ScriptResult parse(RunContext run, String source) {
+        FunctionTable funcs = run.funcs;
+        Parser.ScriptResult res = new Parser(new Lexer(source)).parseScript();
+        run.optimizer.optimize(res.funcs);
+        Expr tail = res.tail == null ? null : run.optimizer.optimize(res.tail);
+        Resolver.resolve(res.funcs);
+        if (tail != null) {
+            Resolver.resolve(tail);
+        }
+        funcs.putAll(res.funcs);
+        Linker.link(funcs, res.funcs.values(), tail);
+        return new Parser.ScriptResult(Collections.unmodifiableMap(res.funcs), tail);
+    }
+
+    private static Object println(Env env, List<Expr> args, int line, int col) {
+        if (args.isEmpty()) {
+            env.run.out.println();
+            return null;
+        }
+        env.run.out.println(args.get(0).eval(env));
+        return null;
+    }
+
+    private static Object size(Env env, List<Expr> args, int line, int col) {
+        if (args.size() != 1) {
+            throw new ScriptRuntimeException("size() expects 1 argument", line, col, env);
+        }
+        Object v = args.get(0).eval(env);
+        if (v instanceof CharSequence s) return (double) s.length();
+        if (v instanceof List<?> l) return (double) l.size();
+        if (v instanceof Map<?, ?> m) return (double) m.size();
+        throw new ScriptRuntimeException("size() expects string, list, or map", line, col, env);
+    }
+
+    private static Object map(Env env, List<Expr> args, int line, int col) {
+        if (args.size() != 2) {
+            throw new ScriptRuntimeException("map() expects 2 arguments", line, col, env);
+        }
+        Object target = args.get(0).eval(env);
+        Object fnVal = args.get(1).eval(env);
+        FunctionRef fn = null;
+        if (fnVal instanceof FunctionRef fr) {
+            fn = fr;
+        } else if (fnVal instanceof CharSequence s) {
+            fn = new FunctionRef(s.toString(), env.funcs);
+        }
+        if (fn == null) {
+            throw new ScriptRuntimeException("map() expects function reference or name", line, col, env);
+        }
+        if (target instanceof List<?> list) {
+            Object[] out = new Object[list.size()];
+            for (int i = 0; i < out.length; i++) {
+                out[i] = ScriptString.flat(fn.call(env, List.of(new ConstExpr(list.get(i))), line, col));
+            }
+            return ScriptList.of(out);
+        }
+        if (target instanceof CharSequence s) {
+            StringBuilder out = new StringBuilder();
+            for (int i = 0; i < s.length(); i++) {
+                Object r = fn.call(env, List.of(new ConstExpr(ScriptString.ofChar(s.charAt(i)))), line, col);
+                out.append(String.valueOf(r));
+            }
+            return out.toString();
+        }
+        throw new ScriptRuntimeException("map() expects list or string", line, col, env);
+    }
+
+    private static Object readln(Env env, List<Expr> args, int line, int col) {
+        if (!args.isEmpty()) {
+            throw new ScriptRuntimeException("readln() expects 0 arguments", line, col, env);
+        }
+        try {
+            String lineIn = env.run.in.readLine();
+            return lineIn == null ? "" : lineIn;
+        } catch (IOException e) {
+            throw new ScriptRuntimeException("readln() failed: " + e.getMessage(), line, col, env);
+        }
+    }
+
+    private static Object toNumber(Env env, List<Expr> args, int line, int col) {
+        if (args.size() != 1) {
+            throw new ScriptRuntimeException("toNumber() expects 1 argument", line, col, env);
+        }
+        return Env.boxedNumber(args.get(0).eval(env));
+    }
+
+    private static Object toStringBuiltin(Env env, List<Expr> args, int line, int col) {
+        if (args.size() != 1) {
+            throw new ScriptRuntimeException("toString() expects 1 argument", line, col, env);
+        }
+        Object v = args.get(0).eval(env);
+        if (v instanceof Number n) {
+            int code = n.intValue();
+            if (code < 0 || code > Character.MAX_VALUE) {
+                throw new ScriptRuntimeException("toString() ascii code out of range", line, col, env);
+            }
+            return ScriptString.ofChar((char) code);
+        }
+        return String.valueOf(v);
+    }
+
+    private static Object typeOf(Env env, List<Expr> args, int line, int col) {
+        if (args.size() != 1) {
+            throw new ScriptRuntimeException("typeOf() expects 1 argument", line, col, env);
+        }
+        Object v = args.get(0).eval(env);
+        if (v == null) return new TypeLiteral("NULL");
+        if (v instanceof Number) return new TypeLiteral("NUMBER");
+        if (v instanceof CharSequence) return new TypeLiteral("STRING");
+        if (v instanceof Boolean) return new TypeLiteral("BOOLEAN");
+        if (v instanceof List<?>) return new TypeLiteral("ARRAY");
+        if (v instanceof Map<?, ?>) return new TypeLiteral("STRUCTURE");
+        if (v instanceof FunctionRef) return new TypeLiteral("FUNCTION");
+        if (v instanceof Tasks.Task) return new TypeLiteral("TASK");
+        if (v instanceof Tasks.Channel) return new TypeLiteral("CHANNEL");
+        throw new ScriptRuntimeException("typeOf() unknown type: " + v, line, col, env);
+    }
+}
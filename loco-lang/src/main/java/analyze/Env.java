@@ -1,233 +1,273 @@
 package analyze;
 
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStreamReader;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 public class Env {
-    private static final BufferedReader READER = new BufferedReader(new InputStreamReader(System.in));
-    Map<String, Object> vars = new HashMap<>();
-    Map<String, Function> funcs;
+    private static final Object UNSET = new Object();
+    private static final Object[] NO_SLOTS = new Object[0];
+    final Scope scope;
+    final Object[] slots;
+    // Bindings the resolver could not see (implicit assignments, eval); created on first use.
+    Map<String, Object> vars;
+    final RunContext run;
+    // The run's function table, kept here as calls look it up all the time.
+    final FunctionTable funcs;
     Env parent;
-    java.util.ArrayDeque<ScriptFrame> stack;
+    CallStack stack;
 
-    Env(Map<String, Function> funcs, Env parent) {
-        this.funcs = funcs;
+    Env(RunContext run, Env parent) {
+        this(run, parent, Scope.EMPTY);
+    }
+
+    Env(RunContext run, Env parent, Scope scope) {
+        this.run = run;
+        this.funcs = run.funcs;
         this.parent = parent;
-        this.stack = parent == null ? new java.util.ArrayDeque<>() : parent.stack;
+        this.stack = parent == null ? new CallStack() : parent.stack;
+        this.scope = scope;
+        int n = scope.size();
+        if (n == 0) {
+            this.slots = NO_SLOTS;
+        } else {
+            this.slots = new Object[n];
+            Arrays.fill(this.slots, UNSET);
+        }
+    }
+
+    // Env for a block with the given scope: this one if the block is elided.
+    Env block(Scope scope) {
+        return scope.elided ? this : new Env(run, this, scope);
+    }
+
+    // Unbinds everything so a loop can run its next iteration in this Env again.
+    void reset() {
+        Arrays.fill(slots, UNSET);
+        vars = null;
     }
 
     Object get(String name) {
-        if (vars.containsKey(name)) return vars.get(name);
-        if (parent != null) return parent.get(name);
-        throw new ScriptRuntimeException("Undefined variable " + name, 0, 0, stackSnapshot());
+        for (Env e = this; e != null; e = e.parent) {
+            int slot = e.scope.indexOf(name);
+            if (slot >= 0 && e.slots[slot] != UNSET) return e.slots[slot];
+            if (e.vars != null && e.vars.containsKey(name)) return e.vars.get(name);
+        }
+        throw new ScriptRuntimeException("Undefined variable " + name, 0, 0, this);
     }
 
     boolean has(String name) {
-        if (vars.containsKey(name)) return true;
-        if (parent != null) return parent.has(name);
+        for (Env e = this; e != null; e = e.parent) {
+            if (e.hasLocal(name)) return true;
+        }
         return false;
     }
 
     void set(String name, Object v) {
-        if (vars.containsKey(name)) {
-            vars.put(name, v);
-            return;
-        }
-        if (parent != null && parent.has(name)) {
-            parent.set(name, v);
-            return;
+        for (Env e = this; e != null; e = e.parent) {
+            int slot = e.scope.indexOf(name);
+            if (slot >= 0 && e.slots[slot] != UNSET) {
+                e.slots[slot] = v;
+                return;
+            }
+            if (e.vars != null && e.vars.containsKey(name)) {
+                e.vars.put(name, v);
+                return;
+            }
         }
+        if (vars == null) vars = new HashMap<>();
         vars.put(name, v);
     }
 
     void define(String name, Object v, int line, int col) {
-        if (vars.containsKey(name)) {
-            throw new ScriptRuntimeException("Variable already defined: " + name, line, col, stackSnapshot());
+        if (hasLocal(name)) {
+            throw new ScriptRuntimeException("Variable already defined: " + name, line, col, this);
         }
+        if (vars == null) vars = new HashMap<>();
         vars.put(name, v);
     }
 
-    Object call(String name, List<Expr> args, int line, int col) {
-        if (name.equals("eval") ) {
-            if (args.size() != 1) {
-                throw new ScriptRuntimeException(name + "() expects 1 argument", line, col, stackSnapshot());
-            }
-            Object v = args.get(0).eval(this);
-            if (!(v instanceof String s)) {
-                throw new ScriptRuntimeException(name + "() expects a string", line, col, stackSnapshot());
-            }
-            Parser p = new Parser(new Lexer(s));
-            Parser.ScriptResult res = p.parseScript();
-            funcs.putAll(res.funcs);
-            if (res.tail != null) {
-                return res.tail.eval(this);
-            }
-            if (res.funcs.containsKey("main")) {
-                return call("main", java.util.List.of(), line, col);
-            }
-            return null;
-        }
+    private boolean hasLocal(String name) {
+        int slot = scope.indexOf(name);
+        if (slot >= 0 && slots[slot] != UNSET) return true;
+        return vars != null && vars.containsKey(name);
+    }
 
-        if (name.equals("println")) {
-            if (args.isEmpty()) {
-                System.out.println();
-                return null;
-            }
-            System.out.println(args.get(0).eval(this));
-            return null;
+    Object getAt(int depth, int slot) {
+        Env e = this;
+        for (int i = 0; i < depth; i++) e = e.parent;
+        return e.slots[slot];
+    }
+
+    void setAt(int depth, int slot, Object v) {
+        Env e = this;
+        for (int i = 0; i < depth; i++) e = e.parent;
+        e.slots[slot] = v;
+    }
+
+    void defineAt(int slot, Object v, String name, int line, int col) {
+        if (slots[slot] != UNSET || (vars != null && vars.containsKey(name))) {
+            throw new ScriptRuntimeException("Variable already defined: " + name, line, col, this);
         }
+        slots[slot] = v;
+    }
 
-        if (name.equals("size")) {
-            if (args.size() != 1) {
-                throw new ScriptRuntimeException("size() expects 1 argument", line, col, stackSnapshot());
-            }
-            Object v = args.get(0).eval(this);
-            if (v instanceof String s) return (double) s.length();
-            if (v instanceof java.util.List<?> l) return (double) l.size();
-            if (v instanceof java.util.Map<?, ?> m) return (double) m.size();
-            throw new ScriptRuntimeException("size() expects string, list, or map", line, col, stackSnapshot());
+    Object call(String name, List<Expr> args, int line, int col) {
+        Builtin builtin = Builtins.get(name, funcs);
+        if (builtin != null) {
+            return builtin.call(this, args, line, col);
+        }
+        Function f = funcs.get(name);
+        if (f == null) {
+            throw new ScriptRuntimeException("Undefined function " + name, line, col, this);
         }
+        return call(name, f, args, line, col);
+    }
 
-        if (name.equals("map")) {
-            if (args.size() != 2) {
-                throw new ScriptRuntimeException("map() expects 2 arguments", line, col, stackSnapshot());
-            }
-            Object target = args.get(0).eval(this);
-            Object fnVal = args.get(1).eval(this);
-            String funcName = null;
-            if (fnVal instanceof FunctionRef fr) {
-                funcName = fr.name;
-            } else if (fnVal instanceof String s) {
-                funcName = s;
-            }
-            if (funcName == null) {
-                throw new ScriptRuntimeException("map() expects function reference or name", line, col, stackSnapshot());
-            }
-            if (target instanceof java.util.List<?> list) {
-                java.util.List<Object> out = new java.util.ArrayList<>();
-                for (Object item : list) {
-                    out.add(call(funcName, java.util.List.of(new ConstExpr(item)), line, col));
-                }
-                return out;
-            }
-            if (target instanceof String s) {
-                StringBuilder out = new StringBuilder();
-                for (int i = 0; i < s.length(); i++) {
-                    Object r = call(funcName, java.util.List.of(new ConstExpr(String.valueOf(s.charAt(i)))), line, col);
-                    out.append(String.valueOf(r));
+    Object call(String name, Function f, List<Expr> args, int line, int col) {
+        // Runs f, then each function its body hands back as a TailCall, in this Java frame;
+        // their script frames stay pushed until the last one returns, so traces are unchanged.
+        Env caller = this;
+        int frames = 0;
+        try {
+            while (true) {
+                if (args.size() != f.params.size()) {
+                    throw new ScriptRuntimeException(
+                            "Function " + name + " expects " + f.params.size() + " args, got " + args.size(),
+                            line,
+                            col,
+                            caller
+                    );
                 }
-                return out.toString();
-            }
-            throw new ScriptRuntimeException("map() expects list or string", line, col, stackSnapshot());
-        }
+                stack.push(name, line, col);
+                frames++;
+                Env local = new Env(run, caller, f.scope);
 
-        if (name.equals("readln")) {
-            if (!args.isEmpty()) {
-                throw new ScriptRuntimeException("readln() expects 0 arguments", line, col, stackSnapshot());
-            }
-            try {
-                String lineIn = READER.readLine();
-                return lineIn == null ? "" : lineIn;
-            } catch (IOException e) {
-                throw new ScriptRuntimeException("readln() failed: " + e.getMessage(), line, col, stackSnapshot());
-            }
-        }
+                for (int i = 0; i < f.params.size(); i++) {
+                    // Bind parameters locally without overwriting captured variables.
+                    local.defineAt(f.paramSlots[i], args.get(i).eval(caller), f.params.get(i), line, col);
+                }
 
-        if (name.equals("toNumber")) {
-            if (args.size() != 1) {
-                throw new ScriptRuntimeException("toNumber() expects 1 argument", line, col, stackSnapshot());
+                Object r = caller.body(name, f, local, line, col);
+                if (!(r instanceof TailCall t)) return r;
+                caller = t.env;
+                name = t.name;
+                f = t.function;
+                args = t.args;
+                line = t.line;
+                col = t.col;
             }
-            return toNumber(args.get(0).eval(this));
+        } finally {
+            for (; frames > 0; frames--) stack.pop();
         }
+    }
 
-        if (name.equals("toString")) {
-            if (args.size() != 1) {
-                throw new ScriptRuntimeException("toString() expects 1 argument", line, col, stackSnapshot());
+    // Runs f with its parameters bound in local; the result may be a TailCall.
+    private Object body(String name, Function f, Env local, int line, int col) {
+        try {
+            if (f.intrinsic != null) {
+                Object[] values = new Object[f.paramSlots.length];
+                for (int i = 0; i < values.length; i++) values[i] = local.slots[f.paramSlots[i]];
+                Object r = Intrinsics.invoke(name, f, values, run);
+                if (r != Intrinsics.FALLBACK) return r;
             }
-            Object v = args.get(0).eval(this);
-            if (v instanceof Number n) {
-                int code = n.intValue();
-                if (code < 0 || code > Character.MAX_VALUE) {
-                    throw new ScriptRuntimeException("toString() ascii code out of range", line, col, stackSnapshot());
-                }
-                return String.valueOf((char) code);
+            for (Stmt s : f.body) {
+                Object r = s.exec(local);
+                if (r != Stmt.NORMAL) return r;
             }
-            return String.valueOf(v);
+        } catch (StackOverflowError e) {
+            // Report it as a script error; if there is no room to build one here, a
+            // caller's frame catches the next overflow and tries again.
+            throw new ScriptRuntimeException("Stack overflow", line, col, this);
         }
+        return null;
+    }
 
-        if (name.equals("typeOf")) {
-            if (args.size() != 1) {
-                throw new ScriptRuntimeException("typeOf() expects 1 argument", line, col, stackSnapshot());
-            }
-            Object v = args.get(0).eval(this);
-            if (v == null) return new TypeLiteral("NULL");
-            if (v instanceof Number) return new TypeLiteral("NUMBER");
-            if (v instanceof String) return new TypeLiteral("STRING");
-            if (v instanceof Boolean) return new TypeLiteral("BOOLEAN");
-            if (v instanceof java.util.List<?>) return new TypeLiteral("ARRAY");
-            if (v instanceof java.util.Map<?, ?>) return new TypeLiteral("STRUCTURE");
-            if (v instanceof FunctionRef) return new TypeLiteral("FUNCTION");
-            throw new ScriptRuntimeException("typeOf() unknown type: " + v, line, col, stackSnapshot());
-        }
+    // Boxed whole numbers from SMALL_MIN up to SMALL_MAX, which covers list indexes,
+    // counters and the Latin-1 char codes; box hands these out instead of allocating.
+    private static final int SMALL_MIN = -128;
+    private static final int SMALL_MAX = 1023;
+    private static final Double[] SMALL = new Double[SMALL_MAX - SMALL_MIN + 1];
 
-        Function f = funcs.get(name);
-        if (f == null) {
-            throw new ScriptRuntimeException("Undefined function " + name, line, col, stackSnapshot());
-        }
-        if (args.size() != f.params.size()) {
-            throw new ScriptRuntimeException(
-                    "Function " + name + " expects " + f.params.size() + " args, got " + args.size(),
-                    line,
-                    col,
-                    stackSnapshot()
-            );
+    static {
+        for (int i = 0; i < SMALL.length; i++) {
+            SMALL[i] = (double) (i + SMALL_MIN);
         }
-        stack.push(new ScriptFrame(name, line, col));
-        Env local = new Env(funcs, this);
+    }
 
-        for (int i = 0; i < f.params.size(); i++) {
-            // Bind parameters locally without overwriting captured variables.
-            local.define(f.params.get(i), args.get(i).eval(this), line, col);
+    static Object box(double d) {
+        int i = (int) d;
+        // -0.0 == 0 but prints differently, so only +0.0 takes the shared zero.
+        if (i == d && i >= SMALL_MIN && i <= SMALL_MAX && (i != 0 || Double.doubleToRawLongBits(d) == 0)) {
+            return SMALL[i - SMALL_MIN];
         }
+        return d;
+    }
 
-        try {
-            for (Stmt s : f.body) s.exec(local);
-        } catch (ReturnValue rv) {
-            return rv.value;
-        } finally {
-            stack.pop();
-        }
-        return null;
+    // toNumber for callers that need the result as an object.
+    static Object boxedNumber(Object v) {
+        if (v instanceof Double) return v;
+        return box(toNumber(v));
     }
 
     static double toNumber(Object v) {
+        if (v instanceof Double d) return d;
+        if (v instanceof String s && s.length() == 1) return s.charAt(0);
         if (v instanceof Number n) return n.doubleValue();
-        if (v instanceof String s) {
+        if (v instanceof CharSequence s) {
             if (s.length() == 1) return (double) s.charAt(0);
             throw new TypeErrorException("Expected number or single-character string, got " + v);
         }
         throw new TypeErrorException("Expected number, got " + v);
     }
 
+    static boolean equal(Object a, Object b) {
+        if (a instanceof CharSequence x && b instanceof CharSequence y) return ScriptString.equal(x, y);
+        return java.util.Objects.equals(a, b);
+    }
+
     static boolean isTruthy(Object v) {
         if (v == null) return false;
         if (v instanceof Boolean b) return b;
         if (v instanceof Number n) return n.doubleValue() != 0.0;
-        if (v instanceof String s) return !s.isEmpty();
+        if (v instanceof CharSequence s) return s.length() != 0;
         if (v instanceof java.util.List<?> l) return !l.isEmpty();
         if (v instanceof java.util.Map<?, ?> m) return !m.isEmpty();
         return true;
     }
 
-    java.util.List<ScriptFrame> stackSnapshot() {
-        return new java.util.ArrayList<>(stack);
+    ScriptFrame stackSnapshot() {
+        return stack.top;
     }
 
     Function getFunction(String name) {
         return funcs.get(name);
     }
 }
+
+// A call to a script function in return position, handed back by the callee's body
+// instead of being made there; Env.call makes it without growing the Java stack.
+final class TailCall {
+    // Env the call's arguments are evaluated in and the callee's Env is chained to.
+    final Env env;
+    final String name;
+    final Function function;
+    final List<Expr> args;
+    final int line;
+    final int col;
+
+    TailCall(Env env, String name, Function function, List<Expr> args, int line, int col) {
+        this.env = env;
+        this.name = name;
+        this.function = function;
+        this.args = args;
+        this.line = line;
+        this.col = col;
+    }
+
+    // Makes the call if r is a TailCall; anything else is already a result.
+    static Object finish(Object r) {
+        return r instanceof TailCall t ? t.env.call(t.name, t.function, t.args, t.line, t.col) : r;
+    }
+}
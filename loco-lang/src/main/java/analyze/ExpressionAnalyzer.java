@@ -1,9 +1,12 @@
 package analyze;
 
+import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.PrintStream;
+import java.io.Reader;
 import java.net.JarURLConnection;
 import java.net.URI;
 import java.net.URL;
@@ -12,12 +15,74 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 
 public class ExpressionAnalyzer {
+    // Frames printed from each end of a long script stack.
+    private static final int STACK_PRINT_ENDS = 20;
+    // File name prefix of the modules shipped in the jar.
+    private static final String BUNDLED_PREFIX = "jar:/";
+    // readln's input unless the options name another; shared, as there is one System.in.
+    private static final BufferedReader STDIN = new BufferedReader(new InputStreamReader(System.in));
+
+    public static final class ExecutionOptions {
+        Optimizer optimizer = new Optimizer();
+        // Use the native std functions from Intrinsics, and optionally check them
+        // against std.ll on every call.
+        boolean intrinsics = true;
+        boolean checkIntrinsics;
+        // Print Java stack traces with errors; script errors only record them in this mode.
+        boolean debug;
+        // Where readln reads from.
+        BufferedReader input = STDIN;
+        // Remembers the files of the last run with these options, to reparse only what
+        // changed in them; parsed files are cached for the whole process either way.
+        IncrementalParser parser = new IncrementalParser();
+        // Java stack, in bytes, for the thread that runs main, which bounds how deep calls
+        // not in return position can nest; 0 runs main on the calling thread.
+        long stackSize;
+
+        public ExecutionOptions optimizer(Optimizer optimizer) {
+            this.optimizer = optimizer;
+            return this;
+        }
+
+        public ExecutionOptions intrinsics(boolean enabled) {
+            this.intrinsics = enabled;
+            return this;
+        }
+
+        public ExecutionOptions checkIntrinsics(boolean enabled) {
+            this.checkIntrinsics = enabled;
+            return this;
+        }
+
+        public ExecutionOptions debug(boolean enabled) {
+            this.debug = enabled;
+            return this;
+        }
+
+        public ExecutionOptions input(Reader input) {
+            this.input = input instanceof BufferedReader b ? b : new BufferedReader(input);
+            return this;
+        }
+
+        public ExecutionOptions parser(IncrementalParser parser) {
+            this.parser = parser;
+            return this;
+        }
+
+        public ExecutionOptions stackSize(long bytes) {
+            this.stackSize = bytes;
+            return this;
+        }
+    }
+
     public static final class ExecutionResult {
         public final String stdout;
         public final String stderr;
@@ -31,8 +96,41 @@ public class ExpressionAnalyzer {
     }
 
     public static void main(String[] args) throws IOException {
-        Path llRoot = args.length > 0 ? Path.of(args[0]) : Path.of(".");
-        ExecutionResult result = execute(loadSourcesFromRoot(llRoot));
+        Path llRoot = Path.of(".");
+        ExecutionOptions options = new ExecutionOptions();
+        Set<String> disabledPasses = new HashSet<>();
+        boolean dump = false;
+        for (String arg : args) {
+            if (arg.equals("--no-opt")) {
+                disabledPasses.addAll(Optimizer.PASSES.keySet());
+            } else if (arg.startsWith("--no-opt=")) {
+                disabledPasses.addAll(List.of(arg.substring("--no-opt=".length()).split(",")));
+            } else if (arg.startsWith("--stack-size=")) {
+                String mb = arg.substring("--stack-size=".length());
+                if (!mb.matches("[1-9][0-9]{0,5}")) {
+                    System.err.println("Invalid stack size: " + mb + " (expected a number of megabytes)");
+                    System.exit(2);
+                }
+                options.stackSize(Long.parseLong(mb) << 20);
+            } else {
+                switch (arg) {
+                    case "--dump-ast" -> dump = true;
+                    case "--no-intrinsics" -> options.intrinsics(false);
+                    case "--check-intrinsics" -> options.checkIntrinsics(true);
+                    case "--debug" -> options.debug(true);
+                    default -> {
+                        if (arg.startsWith("-")) {
+                            System.err.println("Unknown option: " + arg);
+                            System.exit(2);
+                        }
+                        llRoot = Path.of(arg);
+                    }
+                }
+            }
+        }
+        List<SourceFile> sources = loadSourcesFromRoot(llRoot);
+        options.optimizer(new Optimizer(disabledPasses));
+        ExecutionResult result = dump ? dumpOptimized(sources, options.optimizer) : execute(sources, options);
         if (!result.stdout.isEmpty()) {
             System.out.print(result.stdout);
         }
@@ -101,31 +199,61 @@ public class ExpressionAnalyzer {
     }
 
     public static ExecutionResult execute(List<SourceFile> sources) {
+        return execute(sources, new ExecutionOptions());
+    }
+
+    public static ExecutionResult execute(List<SourceFile> sources, ExecutionOptions options) {
+        return capture(sources, options.debug, (out, err) -> runProgram(sources, options, out, err));
+    }
+
+    // Prints the program as the optimizer leaves it instead of running it.
+    public static ExecutionResult dumpOptimized(List<SourceFile> sources, Optimizer optimizer) {
+        return capture(sources, false, (out, err) -> {
+            IncrementalParser parser = new IncrementalParser();
+            List<IncrementalParser.Parsed> parsed = new ArrayList<>();
+            try {
+                out.print(AstPrinter.print(loadProgram(sources, optimizer, false, parser, parsed)));
+            } finally {
+                parser.release(parsed);
+            }
+        });
+    }
+
+    // Runs with out and err as the program's output; nothing writes to System.out.
+    private interface ProgramAction {
+        void run(PrintStream out, PrintStream err) throws IOException;
+    }
+
+    private static ExecutionResult capture(List<SourceFile> sources, boolean debug, ProgramAction action) {
         ByteArrayOutputStream outBuf = new ByteArrayOutputStream();
         ByteArrayOutputStream errBuf = new ByteArrayOutputStream();
-        PrintStream oldOut = System.out;
-        PrintStream oldErr = System.err;
         Exception error = null;
-
         try {
-            System.setOut(new PrintStream(outBuf, true, StandardCharsets.UTF_8));
-            System.setErr(new PrintStream(errBuf, true, StandardCharsets.UTF_8));
-
             if (sources == null || sources.isEmpty()) {
                 throw new IllegalArgumentException("At least one source file must be provided.");
             }
 
-            runProgram(sources);
+            action.run(new PrintStream(outBuf, true, StandardCharsets.UTF_8),
+                    new PrintStream(errBuf, true, StandardCharsets.UTF_8));
         } catch (ScriptRuntimeException e) {
             error = e;
             writeScriptError(errBuf, e, findMainLabel(sources));
-            e.printStackTrace(new PrintStream(errBuf, true, StandardCharsets.UTF_8));
+            if (debug) {
+                e.printStackTrace(new PrintStream(errBuf, true, StandardCharsets.UTF_8));
+            }
         } catch (Exception e) {
             error = e;
-            e.printStackTrace(new PrintStream(errBuf, true, StandardCharsets.UTF_8));
-        } finally {
-            System.setOut(oldOut);
-            System.setErr(oldErr);
+            PrintStream err = new PrintStream(errBuf, true, StandardCharsets.UTF_8);
+            if (debug) {
+                e.printStackTrace(err);
+            } else {
+                err.println("Error: " + (e.getMessage() != null ? e.getMessage() : e));
+            }
+        } catch (StackOverflowError e) {
+            // Deep enough nesting overflows outside any script call too, e.g. in the parser.
+            ScriptRuntimeException overflow = new ScriptRuntimeException("Stack overflow", 0, 0);
+            error = overflow;
+            writeScriptError(errBuf, overflow, findMainLabel(sources));
         }
 
         String stdout = outBuf.toString(StandardCharsets.UTF_8);
@@ -133,29 +261,100 @@ public class ExpressionAnalyzer {
         return new ExecutionResult(stdout, stderr, error);
     }
 
-    private static void runProgram(List<SourceFile> sources) throws IOException {
+    private static void runProgram(List<SourceFile> sources, ExecutionOptions options, PrintStream out, PrintStream err)
+            throws IOException {
+        List<IncrementalParser.Parsed> parsed = new ArrayList<>();
+        try {
+            FunctionTable table = new FunctionTable(
+                    loadProgram(sources, options.optimizer, options.intrinsics, options.parser, parsed));
+            Linker.link(table);
+            RunContext run = new RunContext(table);
+            run.optimizer = options.optimizer;
+            run.checkIntrinsics = options.checkIntrinsics;
+            run.debug = options.debug;
+            run.out = out;
+            run.err = err;
+            run.in = options.input;
+            boolean completed = false;
+            try {
+                callMain(run, options.stackSize);
+                completed = true;
+            } finally {
+                run.tasks.finish(completed);
+                if (options.debug && run.evalCache.hits() + run.evalCache.misses() > 0) {
+                    err.println("eval cache: " + run.evalCache);
+                }
+            }
+        } finally {
+            options.parser.release(parsed);
+            if (options.debug) {
+                err.println("module cache: " + IncrementalParser.cacheStats());
+            }
+        }
+    }
+
+    // Calls main, on a thread with a stack of stackSize bytes unless that is 0.
+    private static void callMain(RunContext run, long stackSize) {
+        if (stackSize <= 0) {
+            new Env(run, null).call("main", List.of(), 1, 1);
+            return;
+        }
+        Throwable[] failure = new Throwable[1];
+        Thread thread = new Thread(null, () -> {
+            try {
+                new Env(run, null).call("main", List.of(), 1, 1);
+            } catch (Throwable t) {
+                failure[0] = t;
+            }
+        }, "main", stackSize);
+        thread.start();
+        boolean interrupted = false;
+        while (true) {
+            try {
+                thread.join();
+                break;
+            } catch (InterruptedException e) {
+                // The run can't be stopped from here; wait it out and pass the interrupt on.
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+        if (failure[0] instanceof RuntimeException e) throw e;
+        if (failure[0] instanceof Error e) throw e;
+    }
+
+    // Parses main.ll and the modules it imports into one optimized, resolved function map.
+    // The files parsed are added to parsed, to go back to parser once the run is over.
+    private static Map<String, Function> loadProgram(List<SourceFile> sources, Optimizer optimizer, boolean intrinsics,
+                                                     IncrementalParser parser, List<IncrementalParser.Parsed> parsed)
+            throws IOException {
         Map<String, SourceFile> sourceMap = toSourceMap(sources);
         SourceFile mainSource = sourceMap.get("main.ll");
         if (mainSource == null) {
             throw new IllegalArgumentException("Missing main source file: main.ll");
         }
-        String programSrc = mainSource.content();
-        Parser p = new Parser(new Lexer(programSrc));
-        Map<String, Function> funcs = p.parseProgram();
+        IncrementalParser.Parsed main = parser.parse(mainSource.fileName(), mainSource.content(), optimizer);
+        parsed.add(main);
+        Map<String, Function> funcs = main.functions();
         Map<String, Map<String, Function>> modules = new HashMap<>();
         Map<String, String> moduleLabels = new HashMap<>();
-        for (Parser.ImportRef ref : p.getImports()) {
+        for (Parser.ImportRef ref : main.imports()) {
             String module = ref.module;
             Map<String, Function> moduleFuncs = modules.get(module);
             if (moduleFuncs == null) {
                 try {
                     SourceFile moduleSrc = readModuleSource(sourceMap, module);
-                    Parser moduleParser = new Parser(new Lexer(moduleSrc.content()));
-                    moduleFuncs = moduleParser.parseProgram();
+                    IncrementalParser.Parsed moduleParsed = parser.parse(moduleSrc.fileName(), moduleSrc.content(), optimizer);
+                    parsed.add(moduleParsed);
+                    moduleFuncs = moduleParsed.functions();
+                    // Only the bundled modules are what the intrinsics implement.
+                    if (intrinsics && moduleSrc.fileName().startsWith(BUNDLED_PREFIX)) {
+                        Intrinsics.link(module, moduleFuncs);
+                    }
                     modules.put(module, moduleFuncs);
                     moduleLabels.put(module, moduleSrc.fileName());
                 } catch (IOException e) {
-                    throw new ScriptRuntimeException("Module file not found: " + module, ref.line, ref.col, List.of());
+                    throw new ScriptRuntimeException("Module file not found: " + module, ref.line, ref.col);
                 }
             }
             Function f = moduleFuncs.get(ref.name);
@@ -164,17 +363,15 @@ public class ExpressionAnalyzer {
                 throw new ScriptRuntimeException(
                         "Unknown function in module " + module + ": " + ref.name + " (in " + moduleLabel + ")",
                         ref.line,
-                        ref.col,
-                        List.of()
+                        ref.col
                 );
             }
             if (funcs.containsKey(ref.alias)) {
-                throw new ScriptRuntimeException("Function already defined: " + ref.alias, ref.line, ref.col, List.of());
+                throw new ScriptRuntimeException("Function already defined: " + ref.alias, ref.line, ref.col);
             }
             funcs.put(ref.alias, f);
         }
-        Env env = new Env(funcs, null);
-        env.call("main", List.of(), 1, 1);
+        return funcs;
     }
 
     private static SourceFile readModuleSource(Map<String, SourceFile> sources, String module) throws IOException {
@@ -185,7 +382,7 @@ public class ExpressionAnalyzer {
         if ("std".equals(module)) {
             try (InputStream in = ExpressionAnalyzer.class.getResourceAsStream("/std/std.ll")) {
                 if (in != null) {
-                    return new SourceFile("jar:/std.ll", new String(in.readAllBytes(), StandardCharsets.UTF_8));
+                    return new SourceFile(BUNDLED_PREFIX + "std.ll", new String(in.readAllBytes(), StandardCharsets.UTF_8));
                 }
             }
         }
@@ -195,9 +392,17 @@ public class ExpressionAnalyzer {
     private static void writeScriptError(ByteArrayOutputStream errBuf, ScriptRuntimeException e, String sourceLabel) {
         PrintStream err = new PrintStream(errBuf, true, StandardCharsets.UTF_8);
         err.println("Script error in " + sourceLabel + ": " + e.getMessage() + " at " + e.line + ":" + e.col);
-        if (!e.stack.isEmpty()) {
+        List<ScriptFrame> stack = e.stack();
+        if (!stack.isEmpty()) {
             err.println("Script stack:");
-            for (ScriptFrame f : e.stack) {
+            int n = stack.size();
+            for (int i = 0; i < n; i++) {
+                // Deep recursion would print thousands of frames; keep both ends.
+                if (n > 2 * STACK_PRINT_ENDS && i == STACK_PRINT_ENDS) {
+                    err.println("  ... " + (n - 2 * STACK_PRINT_ENDS) + " more");
+                    i = n - STACK_PRINT_ENDS;
+                }
+                ScriptFrame f = stack.get(i);
                 err.println("  at " + f.name + " (" + f.line + ":" + f.col + ")");
             }
         }
@@ -5,9 +5,19 @@ import java.util.List;
 public class Function {
     List<String> params;
     List<Stmt> body;
+    // Filled in by the Resolver.
+    Scope scope = Scope.EMPTY;
+    int[] paramSlots;
+    // Native implementation from Intrinsics, tried before the body.
+    Intrinsic intrinsic;
 
     Function(List<String> p, List<Stmt> b) {
         params = p;
         body = b;
     }
+
+    // Drops what a run attached to the function, before another run reuses it.
+    void reset() {
+        intrinsic = null;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,43 @@
+package analyze;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+public class FunctionTable extends HashMap<String, Function> {
+    // Every name the linked code can bind as a variable; a call site whose name is
+    // not in here can never be redirected through a FunctionRef variable. Grows only
+    // by linking, which bumps the version when it adds a name.
+    final Set<String> boundNames = new HashSet<>();
+    // Bumped whenever a name may bind differently; call sites and FunctionRefs check
+    // it before using their cached target. Putting back the Function a name already
+    // has binds nothing differently, so it leaves the version alone.
+    int version;
+
+    FunctionTable(Map<String, Function> funcs) {
+        super(funcs);
+    }
+
+    @Override
+    public Function put(String name, Function f) {
+        Function old = super.put(name, f);
+        if (old != f) version++;
+        return old;
+    }
+
+    @Override
+    public void putAll(Map<? extends String, ? extends Function> m) {
+        boolean changed = false;
+        for (Map.Entry<? extends String, ? extends Function> e : m.entrySet()) {
+            changed |= super.put(e.getKey(), e.getValue()) != e.getValue();
+        }
+        if (changed) version++;
+    }
+
+    @Override
+    public Function remove(Object name) {
+        version++;
+        return super.remove(name);
+    }
+}
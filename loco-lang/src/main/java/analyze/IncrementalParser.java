@@ -0,0 +1,245 @@
+package analyze;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Parses the files of a program for a run, reusing earlier parses. Parsed files live
+ * in one cache for the whole process, keyed by a hash of their content and the
+ * optimizer passes, so std and the bundled examples are parsed once, not once per run.
+ * A run takes the files it uses out of the cache and puts them back when it is done:
+ * nodes hold per-run state, so two runs never share them, and a run that starts
+ * meanwhile parses its own copy.
+ *
+ * The editor runs the same project again after every change. Given the same parser
+ * each time, a changed file is diffed against that file's previous parse: only the
+ * text between the unchanged head and tail is lexed and parsed again, and the
+ * declarations outside it keep their Function nodes, already optimized and resolved.
+ * Nodes carry their line and column, so a declaration below an edit that adds or
+ * removes lines is parsed again as well. Such a parse stays with the parser that
+ * made it; only full parses go into the shared cache, so other sessions never get a
+ * result that a mistake in the diffing could have made wrong.
+ */
+public class IncrementalParser {
+    // Weighed by source length, which tracks the size of the AST well enough.
+    private static final long CACHE_CHARS = 16 << 20;
+    private static final LruCache<String, Parsed> CACHE = new LruCache<>(CACHE_CHARS, (key, p) -> p.source.length());
+
+    // Cache key of the last parse of each file, by label.
+    private final Map<String, String> files = new HashMap<>();
+    // Last parse of each file, by label, when it was an incremental one.
+    private final Map<String, Parsed> reparsed = new HashMap<>();
+
+    // A parsed file; owned by one run between parse() and release().
+    static final class Parsed {
+        final String label;
+        final String key;
+        final String source;
+        final List<Parser.Decl> decls;
+        // Parsed from scratch rather than spliced into an earlier parse.
+        final boolean full;
+
+        Parsed(String label, String key, String source, List<Parser.Decl> decls, boolean full) {
+            this.label = label;
+            this.key = key;
+            this.source = source;
+            this.decls = decls;
+            this.full = full;
+        }
+
+        Map<String, Function> functions() {
+            Map<String, Function> funcs = new HashMap<>();
+            for (Parser.Decl d : decls) {
+                if (d.function != null) funcs.put(d.name, d.function);
+            }
+            return funcs;
+        }
+
+        List<Parser.ImportRef> imports() {
+            List<Parser.ImportRef> imports = new ArrayList<>();
+            for (Parser.Decl d : decls) {
+                if (d.ref != null) imports.add(d.ref);
+            }
+            return imports;
+        }
+    }
+
+    // Size and hit rate of the process-wide cache of parsed files.
+    public static String cacheStats() {
+        return CACHE.toString();
+    }
+
+    // Parses source, the file called label, with its functions optimized and resolved.
+    Parsed parse(String label, String source, Optimizer optimizer) {
+        String key = key(source, optimizer);
+        String last;
+        Parsed mine;
+        synchronized (files) {
+            last = files.put(label, key);
+            mine = reparsed.remove(label);
+        }
+        if (mine != null && mine.key.equals(key)) {
+            reuse(mine.decls);
+            return mine;
+        }
+        Parsed cached = CACHE.take(key);
+        if (cached != null) {
+            reuse(cached.decls);
+            return cached;
+        }
+        // Reused declarations keep the passes they were optimized with, so only a parse
+        // made with the same passes can be diffed against.
+        if (mine != null && !sameOptimizer(mine.key, key)) mine = null;
+        Parsed old = mine != null ? mine : last == null || !sameOptimizer(last, key) ? null : CACHE.take(last);
+        if (old != null) {
+            try {
+                List<Parser.Decl> decls = reparse(old, source, optimizer);
+                if (decls != null) return new Parsed(label, key, source, decls, false);
+            } catch (RuntimeException e) {
+                // Reported with the right position by the full parse below.
+            }
+            // reparse leaves old untouched unless it succeeds, so a shared parse can go back.
+            if (old.full) {
+                release(List.of(old));
+                old = null;
+            }
+        }
+        try {
+            List<Parser.Decl> decls = new Parser(new Lexer(source)).parseDeclarations();
+            prepare(decls, optimizer);
+            return new Parsed(label, key, source, decls, true);
+        } catch (RuntimeException e) {
+            // Keep the last good parse to diff against; the next edit most likely fixes this one.
+            synchronized (files) {
+                files.put(label, last);
+            }
+            if (old != null) release(List.of(old));
+            throw e;
+        }
+    }
+
+    void release(List<Parsed> parsed) {
+        for (Parsed p : parsed) {
+            if (p.full) {
+                CACHE.put(p.key, p);
+            } else {
+                synchronized (files) {
+                    reparsed.put(p.label, p);
+                }
+            }
+        }
+    }
+
+    private static String key(String source, Optimizer optimizer) {
+        MessageDigest sha;
+        try {
+            sha = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        byte[] hash = sha.digest(source.getBytes(StandardCharsets.UTF_8));
+        return optimizer.signature() + ":" + HexFormat.of().formatHex(hash);
+    }
+
+    // Whether the cache keys a and b were made with the same optimizer passes.
+    private static boolean sameOptimizer(String a, String b) {
+        int colon = a.lastIndexOf(':');
+        return colon == b.lastIndexOf(':') && a.regionMatches(0, b, 0, colon);
+    }
+
+    // Declarations of source, parsing only what changed since old; null when the
+    // result would need a check only the full parse makes, e.g. a duplicate name.
+    private static List<Parser.Decl> reparse(Parsed old, String source, Optimizer optimizer) {
+        String was = old.source;
+        int n = Math.min(was.length(), source.length());
+        int head = 0;
+        while (head < n && was.charAt(head) == source.charAt(head)) head++;
+        int tail = 0;
+        while (tail < n - head && was.charAt(was.length() - 1 - tail) == source.charAt(source.length() - 1 - tail)) {
+            tail++;
+        }
+        int oldTail = was.length() - tail;
+        int shift = source.length() - was.length();
+        boolean sameLines = newlines(was, head, oldTail) == newlines(source, head, source.length() - tail);
+
+        List<Parser.Decl> before = new ArrayList<>();
+        List<Parser.Decl> after = new ArrayList<>();
+        for (Parser.Decl d : old.decls) {
+            // An edit right next to a declaration can change its first or last token,
+            // e.g. by deleting the space after an import, so it counts as touched.
+            if (d.end < head) {
+                before.add(d);
+            } else if (sameLines && d.start > oldTail && was.lastIndexOf('\n', d.start - 1) >= oldTail) {
+                // Its whole first line is unchanged, so it lexes the same and keeps its columns.
+                Parser.Decl moved = new Parser.Decl(d.name, d.function, d.ref);
+                moved.start = d.start + shift;
+                moved.end = d.end + shift;
+                moved.endLine = d.endLine;
+                moved.endCol = d.endCol;
+                after.add(moved);
+            }
+        }
+
+        Parser.Decl prev = before.isEmpty() ? null : before.get(before.size() - 1);
+        int from = prev == null ? 0 : prev.end;
+        int to = after.isEmpty() ? source.length() : after.get(0).start;
+        Lexer lex = prev == null
+                ? new Lexer(source, from, to, 1, 1)
+                : new Lexer(source, from, to, prev.endLine, prev.endCol);
+        List<Parser.Decl> middle = new Parser(lex).parseDeclarations();
+
+        List<Parser.Decl> decls = new ArrayList<>(before.size() + middle.size() + after.size());
+        decls.addAll(before);
+        decls.addAll(middle);
+        decls.addAll(after);
+        if (hasDuplicates(decls)) return null;
+        prepare(middle, optimizer);
+        reuse(before);
+        reuse(after);
+        return decls;
+    }
+
+    private static boolean hasDuplicates(List<Parser.Decl> decls) {
+        Set<String> functions = new HashSet<>();
+        Set<List<String>> imports = new HashSet<>();
+        for (Parser.Decl d : decls) {
+            boolean fresh = d.function != null
+                    ? functions.add(d.name)
+                    : imports.add(List.of(d.ref.module, d.ref.name, d.ref.alias));
+            if (!fresh) return true;
+        }
+        return false;
+    }
+
+    private static void prepare(List<Parser.Decl> decls, Optimizer optimizer) {
+        Map<String, Function> funcs = new LinkedHashMap<>();
+        for (Parser.Decl d : decls) {
+            if (d.function != null) funcs.put(d.name, d.function);
+        }
+        optimizer.optimize(funcs);
+        Resolver.resolve(funcs);
+    }
+
+    private static void reuse(List<Parser.Decl> decls) {
+        for (Parser.Decl d : decls) {
+            if (d.function != null) d.function.reset();
+        }
+    }
+
+    private static int newlines(String s, int from, int to) {
+        int count = 0;
+        for (int i = from; i < to; i++) {
+            if (s.charAt(i) == '\n') count++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,243 @@
+package analyze;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+interface Intrinsic {
+    // Result for already evaluated arguments, or Intrinsics.FALLBACK to run the script body.
+    Object call(Object[] args);
+}
+
+/**
+ * Native implementations of module functions. When a bundled module is loaded, every
+ * function registered here under the same name and arity gets its intrinsic attached;
+ * the script body stays the reference and still runs for any argument the native code
+ * does not handle exactly like it, so errors keep their script line numbers.
+ */
+public class Intrinsics {
+    static final Object FALLBACK = new Object();
+    // Lists at least this long are sorted with the parallel sorts.
+    private static final int PARALLEL_SORT_MIN = 1 << 13;
+
+    private record Entry(int arity, Intrinsic impl) {
+    }
+
+    private static final Map<String, Map<String, Entry>> MODULES = new ConcurrentHashMap<>();
+
+    static {
+        register("std", "sort", 1, Intrinsics::sort);
+        register("std", "maxElement", 1, Intrinsics::maxElement);
+        register("std", "stringToList", 1, Intrinsics::stringToList);
+        register("std", "listToString", 1, Intrinsics::listToString);
+        register("std", "upperCase", 1, args -> changeCase(args[0], 'a', 'z', -32));
+        register("std", "lowerCase", 1, args -> changeCase(args[0], 'A', 'Z', 32));
+        register("std", "reverseList", 1, Intrinsics::reverseList);
+        register("std", "contains", 2, Intrinsics::contains);
+        register("std", "indexOf", 2, Intrinsics::indexOf);
+    }
+
+    static void register(String module, String name, int arity, Intrinsic impl) {
+        MODULES.computeIfAbsent(module, k -> new ConcurrentHashMap<>()).put(name, new Entry(arity, impl));
+    }
+
+    // Arity of every intrinsic of module, by function name.
+    static Map<String, Integer> arities(String module) {
+        Map<String, Integer> out = new TreeMap<>();
+        MODULES.getOrDefault(module, Map.of()).forEach((name, e) -> out.put(name, e.arity()));
+        return out;
+    }
+
+    // Attaches the module's intrinsics to its freshly parsed functions.
+    static void link(String module, Map<String, Function> funcs) {
+        Map<String, Entry> entries = MODULES.getOrDefault(module, Map.of());
+        for (Map.Entry<String, Entry> e : entries.entrySet()) {
+            Function f = funcs.get(e.getKey());
+            if (f != null && f.params.size() == e.getValue().arity()) {
+                f.intrinsic = e.getValue().impl();
+            }
+        }
+    }
+
+    // Runs f's intrinsic; with checkIntrinsics set, also runs the script body on copies
+    // of the arguments and fails if the two disagree on the result or on the arguments.
+    static Object invoke(String name, Function f, Object[] args, RunContext run) {
+        if (!run.checkIntrinsics) {
+            return f.intrinsic.call(args);
+        }
+        Object[] copies = new Object[args.length];
+        for (int i = 0; i < args.length; i++) copies[i] = copy(args[i]);
+        Object r = f.intrinsic.call(args);
+        if (r == FALLBACK) return r;
+        Object expected;
+        try {
+            expected = reference(f, copies, run);
+        } catch (ScriptRuntimeException e) {
+            throw new IllegalStateException("Intrinsic " + name + " returned " + r + " where the script failed: " + e.getMessage());
+        }
+        if (!same(r, expected)) {
+            throw new IllegalStateException("Intrinsic " + name + " returned " + r + ", script returned " + expected);
+        }
+        for (int i = 0; i < args.length; i++) {
+            if (!same(args[i], copies[i])) {
+                throw new IllegalStateException("Intrinsic " + name + " left argument " + (i + 1) + " as " + args[i]
+                        + ", script left " + copies[i]);
+            }
+        }
+        return r;
+    }
+
+    private static Object reference(Function f, Object[] args, RunContext run) {
+        Env local = new Env(run, null, f.scope);
+        for (int i = 0; i < args.length; i++) {
+            local.defineAt(f.paramSlots[i], args[i], f.params.get(i), 0, 0);
+        }
+        for (Stmt s : f.body) {
+            Object r = s.exec(local);
+            if (r != Stmt.NORMAL) return TailCall.finish(r);
+        }
+        return null;
+    }
+
+    private static Object copy(Object v) {
+        if (v instanceof List<?> list) {
+            List<Object> out = new ArrayList<>(list.size());
+            for (Object item : list) out.add(copy(item));
+            return out;
+        }
+        if (v instanceof Map<?, ?> map) {
+            ScriptMap out = new ScriptMap();
+            for (Map.Entry<?, ?> e : map.entrySet()) out.put((String) e.getKey(), copy(e.getValue()));
+            return out;
+        }
+        return v;
+    }
+
+    private static boolean same(Object a, Object b) {
+        if (a instanceof List<?> x && b instanceof List<?> y) {
+            if (x.size() != y.size()) return false;
+            for (int i = 0; i < x.size(); i++) {
+                if (!same(x.get(i), y.get(i))) return false;
+            }
+            return true;
+        }
+        return Env.equal(a, b);
+    }
+
+    // Bubble sort in std.ll swaps on a strict >, so it is stable; the native sort keeps
+    // that for lists whose elements all compare the same way.
+    @SuppressWarnings("unchecked")
+    private static Object sort(Object[] args) {
+        if (!(args[0] instanceof List<?> raw)) return FALLBACK;
+        List<Object> list = (List<Object>) raw;
+        int n = list.size();
+        if (n < 2) return list;
+        Object[] items = list.toArray();
+        if (allNumbers(items)) {
+            double[] values = new double[n];
+            for (int i = 0; i < n; i++) values[i] = (Double) items[i];
+            if (n >= PARALLEL_SORT_MIN) {
+                Arrays.parallelSort(values);
+            } else {
+                Arrays.sort(values);
+            }
+            for (int i = 0; i < n; i++) list.set(i, values[i]);
+            return list;
+        }
+        if (allStrings(items)) {
+            CharSequence[] values = Arrays.copyOf(items, n, CharSequence[].class);
+            if (n >= PARALLEL_SORT_MIN) {
+                Arrays.parallelSort(values, CharSequence::compare);
+            } else {
+                Arrays.sort(values, CharSequence::compare);
+            }
+            for (int i = 0; i < n; i++) list.set(i, values[i]);
+            return list;
+        }
+        return FALLBACK;
+    }
+
+    private static Object maxElement(Object[] args) {
+        if (!(args[0] instanceof List<?> list) || list.isEmpty()) return FALLBACK;
+        Object[] items = list.toArray();
+        int best = 0;
+        if (allNumbers(items)) {
+            for (int i = 1; i < items.length; i++) {
+                if (Double.compare((Double) items[i], (Double) items[best]) > 0) best = i;
+            }
+        } else if (allStrings(items)) {
+            for (int i = 1; i < items.length; i++) {
+                if (CharSequence.compare((CharSequence) items[i], (CharSequence) items[best]) > 0) best = i;
+            }
+        } else {
+            return FALLBACK;
+        }
+        return items[best];
+    }
+
+    private static Object stringToList(Object[] args) {
+        if (!(args[0] instanceof CharSequence s)) return FALLBACK;
+        Object[] out = new Object[s.length()];
+        for (int i = 0; i < out.length; i++) out[i] = ScriptString.ofChar(s.charAt(i));
+        return ScriptList.of(out);
+    }
+
+    private static Object listToString(Object[] args) {
+        if (!(args[0] instanceof List<?> list)) return FALLBACK;
+        StringBuilder out = new StringBuilder();
+        for (Object item : list) out.append(item);
+        return out.toString();
+    }
+
+    private static Object changeCase(Object v, char from, char to, int shift) {
+        if (v == null) return null;
+        if (!(v instanceof CharSequence s)) return FALLBACK;
+        char[] out = new char[s.length()];
+        for (int i = 0; i < out.length; i++) {
+            char c = s.charAt(i);
+            out[i] = c >= from && c <= to ? (char) (c + shift) : c;
+        }
+        return new String(out);
+    }
+
+    private static Object reverseList(Object[] args) {
+        if (!(args[0] instanceof List<?> list)) return FALLBACK;
+        Object[] out = new Object[list.size()];
+        for (int i = 0; i < out.length; i++) out[i] = list.get(out.length - 1 - i);
+        return ScriptList.of(out);
+    }
+
+    private static Object contains(Object[] args) {
+        if (!(args[0] instanceof List<?> list)) return FALLBACK;
+        return find(list, args[1]) >= 0;
+    }
+
+    private static Object indexOf(Object[] args) {
+        if (!(args[0] instanceof List<?> list)) return FALLBACK;
+        return (double) find(list, args[1]);
+    }
+
+    private static int find(List<?> list, Object v) {
+        for (int i = 0; i < list.size(); i++) {
+            if (Env.equal(list.get(i), v)) return i;
+        }
+        return -1;
+    }
+
+    private static boolean allNumbers(Object[] items) {
+        for (Object item : items) {
+            if (!(item instanceof Double)) return false;
+        }
+        return true;
+    }
+
+    private static boolean allStrings(Object[] items) {
+        for (Object item : items) {
+            if (!(item instanceof CharSequence)) return false;
+        }
+        return true;
+    }
+}
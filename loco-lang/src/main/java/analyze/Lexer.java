@@ -1,24 +1,160 @@
 package analyze;
 
+import java.util.Arrays;
+
+/**
+ * Tokenizes a whole source, or a range of it, in one pass. Tokens are stored by index
+ * in parallel int arrays (type, source range, position) instead of as objects, and
+ * names are interned in a per-source symbol table that also knows the keywords, so
+ * lexing allocates one String per distinct name and nothing per token. The text of
+ * other tokens is cut out of the source only when the parser asks for it.
+ *
+ * A lexical error ends the buffer; it is thrown when the parser reaches that point,
+ * so an earlier syntax error is still reported first.
+ */
 public class Lexer {
+    private static final TokenType[] TYPES = TokenType.values();
+
     private final String input;
-    private int pos = 0;
-    private int line = 1;
-    private int col = 1;
+    // Lexing stops here, which lets a caller lex just a range of the input.
+    private final int limit;
+    private int pos;
+    private int lineNo;
+    private int colNo;
+
+    private int[] types;
+    private int[] starts;
+    private int[] ends;
+    private int[] lines;
+    private int[] cols;
+    // Symbol of a name token; for a string literal, 1 if it contains escapes.
+    private int[] syms;
+    private int count;
+    private final Symbols symbols = new Symbols();
+
+    // Index of the token where lexing failed and the error to throw there, if any.
+    int errorIndex = -1;
+    ScriptRuntimeException error;
 
     Lexer(String input) {
+        this(input, 0, input.length(), 1, 1);
+    }
+
+    // Lexes input from `from` to `to`, with `from` being at line:col.
+    Lexer(String input, int from, int to, int line, int col) {
         this.input = input;
+        limit = to;
+        pos = from;
+        lineNo = line;
+        colNo = col;
+        int capacity = (to - from) / 4 + 16;
+        types = new int[capacity];
+        starts = new int[capacity];
+        ends = new int[capacity];
+        lines = new int[capacity];
+        cols = new int[capacity];
+        syms = new int[capacity];
+        try {
+            boolean more = true;
+            while (more) more = scan();
+        } catch (ScriptRuntimeException e) {
+            errorIndex = count;
+            error = e;
+            add(TokenType.EOF, pos, pos, lineNo, colNo, -1);
+        }
+    }
+
+    TokenType type(int i) {
+        return TYPES[types[i]];
+    }
+
+    int line(int i) {
+        return lines[i];
+    }
+
+    int col(int i) {
+        return cols[i];
+    }
+
+    // Source offsets of token i.
+    int start(int i) {
+        return starts[i];
+    }
+
+    int end(int i) {
+        return ends[i];
+    }
+
+    // Text of a name, type or keyword token, or the value of a string literal.
+    String text(int i) {
+        TokenType t = TYPES[types[i]];
+        if (t == TokenType.STRING) return syms[i] == 0 ? input.substring(starts[i] + 1, ends[i] - 1) : unescape(i);
+        if (t == TokenType.EOF) return "";
+        if (t != TokenType.NUMBER && syms[i] >= 0) return symbols.name(syms[i]);
+        return input.substring(starts[i], ends[i]);
     }
 
-    Token next() {
+    double number(int i) {
+        int start = starts[i];
+        int end = ends[i];
+        // Up to 15 digits are exact in a double, so plain integers need no parsing call.
+        if (end - start <= 15) {
+            long v = 0;
+            int j = start;
+            for (char ch; j < end && (ch = input.charAt(j)) >= '0' && ch <= '9'; j++) v = v * 10 + (ch - '0');
+            if (j == end) return v;
+        }
+        return Double.parseDouble(input.substring(start, end));
+    }
+
+    private String unescape(int i) {
+        StringBuilder sb = new StringBuilder(ends[i] - starts[i]);
+        for (int j = starts[i] + 1; j < ends[i] - 1; j++) {
+            char ch = input.charAt(j);
+            if (ch != '\\') {
+                sb.append(ch);
+                continue;
+            }
+            char esc = input.charAt(++j);
+            switch (esc) {
+                case 'n' -> sb.append('\n');
+                case 'r' -> sb.append('\r');
+                case 't' -> sb.append('\t');
+                default -> sb.append(esc);
+            }
+        }
+        return sb.toString();
+    }
+
+    private void add(TokenType type, int start, int end, int line, int col, int sym) {
+        if (count == types.length) {
+            int n = count * 2;
+            types = Arrays.copyOf(types, n);
+            starts = Arrays.copyOf(starts, n);
+            ends = Arrays.copyOf(ends, n);
+            lines = Arrays.copyOf(lines, n);
+            cols = Arrays.copyOf(cols, n);
+            syms = Arrays.copyOf(syms, n);
+        }
+        types[count] = type.ordinal();
+        starts[count] = start;
+        ends[count] = end;
+        lines[count] = line;
+        cols[count] = col;
+        syms[count] = sym;
+        count++;
+    }
+
+    // Adds the next token; false once it added EOF.
+    private boolean scan() {
         while (true) {
-            while (pos < input.length() && Character.isWhitespace(input.charAt(pos))) {
+            while (pos < limit && Character.isWhitespace(input.charAt(pos))) {
                 advance();
             }
-            if (pos + 1 < input.length()
+            if (pos + 1 < limit
                     && input.charAt(pos) == '/'
                     && input.charAt(pos + 1) == '/') {
-                while (pos < input.length() && input.charAt(pos) != '\n') {
+                while (pos < limit && input.charAt(pos) != '\n') {
                     advance();
                 }
                 continue;
@@ -26,138 +162,175 @@ public class Lexer {
             break;
         }
 
-        if (pos >= input.length())
-            return new Token(TokenType.EOF, "", line, col);
+        int startLine = lineNo;
+        int startCol = colNo;
+        int start = pos;
+        if (pos >= limit) {
+            add(TokenType.EOF, start, start, startLine, startCol, -1);
+            return false;
+        }
 
         char c = input.charAt(pos);
-        int startLine = line;
-        int startCol = col;
 
         if (Character.isDigit(c)) {
-            int start = pos;
-            while (pos < input.length() &&
+            while (pos < limit &&
                     (Character.isDigit(input.charAt(pos)) || input.charAt(pos) == '.'))
                 advance();
-            return new Token(TokenType.NUMBER, input.substring(start, pos), startLine, startCol);
+            add(TokenType.NUMBER, start, pos, startLine, startCol, -1);
+            return true;
         }
 
         if (c == '"' || c == '\'') {
             char quote = c;
             advance();
-            StringBuilder sb = new StringBuilder();
-            while (pos < input.length()) {
+            int escapes = 0;
+            while (pos < limit) {
                 char ch = input.charAt(pos);
                 if (ch == quote) {
                     advance();
-                    return new Token(TokenType.STRING, sb.toString(), startLine, startCol);
+                    add(TokenType.STRING, start, pos, startLine, startCol, escapes);
+                    return true;
                 }
                 if (ch == '\\') {
                     advance();
-                    if (pos >= input.length()) {
-                        throw new ScriptRuntimeException("Unterminated string literal", startLine, startCol, java.util.List.of());
+                    if (pos >= limit) {
+                        throw new ScriptRuntimeException("Unterminated string literal", startLine, startCol);
                     }
-                    char esc = input.charAt(pos);
-                    switch (esc) {
-                        case '\\' -> sb.append('\\');
-                        case '"' -> sb.append('"');
-                        case '\'' -> sb.append('\'');
-                        case 'n' -> sb.append('\n');
-                        case 'r' -> sb.append('\r');
-                        case 't' -> sb.append('\t');
-                        default -> sb.append(esc);
-                    }
-                    advance();
-                    continue;
+                    escapes = 1;
                 }
-                sb.append(ch);
                 advance();
             }
-            throw new ScriptRuntimeException("Unterminated string literal", startLine, startCol, java.util.List.of());
+            throw new ScriptRuntimeException("Unterminated string literal", startLine, startCol);
         }
 
         if (Character.isLetter(c)) {
-            int start = pos;
-            while (pos < input.length() && Character.isLetterOrDigit(input.charAt(pos)))
+            while (pos < limit && Character.isLetterOrDigit(input.charAt(pos)))
                 advance();
-            String t = input.substring(start, pos);
-            return switch (t) {
-                case "fun" -> new Token(TokenType.FUN, t, startLine, startCol);
-                case "var" -> new Token(TokenType.VAR, t, startLine, startCol);
-                case "return" -> new Token(TokenType.RETURN, t, startLine, startCol);
-                case "if" -> new Token(TokenType.IF, t, startLine, startCol);
-                case "else" -> new Token(TokenType.ELSE, t, startLine, startCol);
-                case "for" -> new Token(TokenType.FOR, t, startLine, startCol);
-                case "import" -> new Token(TokenType.IMPORT, t, startLine, startCol);
-                case "as" -> new Token(TokenType.AS, t, startLine, startCol);
-                case "true" -> new Token(TokenType.TRUE, t, startLine, startCol);
-                case "false" -> new Token(TokenType.FALSE, t, startLine, startCol);
-                case "null" -> new Token(TokenType.NULL, t, startLine, startCol);
-                case "NULL", "NUMBER", "STRING", "BOOLEAN", "ARRAY", "STRUCTURE", "FUNCTION" ->
-                        new Token(TokenType.TYPE, t, startLine, startCol);
-                default -> new Token(TokenType.IDENT, t, startLine, startCol);
-            };
+            int sym = symbols.intern(input, start, pos);
+            add(symbols.type(sym), start, pos, startLine, startCol, sym);
+            return true;
         }
 
         advance();
-        return switch (c) {
-            case '+' -> new Token(TokenType.PLUS, "+", startLine, startCol);
-            case '-' -> new Token(TokenType.MINUS, "-", startLine, startCol);
-            case '*' -> new Token(TokenType.MUL, "*", startLine, startCol);
-            case '/' -> new Token(TokenType.DIV, "/", startLine, startCol);
-            case '%' -> new Token(TokenType.MOD, "%", startLine, startCol);
-            case '=' -> {
-                if (pos < input.length() && input.charAt(pos) == '=') {
-                    advance();
-                    yield new Token(TokenType.EQ, "==", startLine, startCol);
-                }
-                yield new Token(TokenType.ASSIGN, "=", startLine, startCol);
-            }
-            case '!' -> {
-                if (pos < input.length() && input.charAt(pos) == '=') {
-                    advance();
-                    yield new Token(TokenType.NE, "!=", startLine, startCol);
-                }
-                yield new Token(TokenType.NOT, "!", startLine, startCol);
-            }
-            case '&' -> new Token(TokenType.AND, "&", startLine, startCol);
-            case '|' -> new Token(TokenType.OR, "|", startLine, startCol);
-            case '>' -> {
-                if (pos < input.length() && input.charAt(pos) == '=') {
-                    advance();
-                    yield new Token(TokenType.GE, ">=", startLine, startCol);
-                }
-                yield new Token(TokenType.GT, ">", startLine, startCol);
-            }
-            case '<' -> {
-                if (pos < input.length() && input.charAt(pos) == '=') {
-                    advance();
-                    yield new Token(TokenType.LE, "<=", startLine, startCol);
-                }
-                yield new Token(TokenType.LT, "<", startLine, startCol);
-            }
-            case ',' -> new Token(TokenType.COMMA, ",", startLine, startCol);
-            case ';' -> new Token(TokenType.SEMI, ";", startLine, startCol);
-            case ':' -> new Token(TokenType.COLON, ":", startLine, startCol);
-            case '.' -> new Token(TokenType.DOT, ".", startLine, startCol);
-            case '(' -> new Token(TokenType.LPAREN, "(", startLine, startCol);
-            case ')' -> new Token(TokenType.RPAREN, ")", startLine, startCol);
-            case '[' -> new Token(TokenType.LBRACKET, "[", startLine, startCol);
-            case ']' -> new Token(TokenType.RBRACKET, "]", startLine, startCol);
-            case '{' -> new Token(TokenType.LBRACE, "{", startLine, startCol);
-            case '}' -> new Token(TokenType.RBRACE, "}", startLine, startCol);
-            default -> throw new ScriptRuntimeException("Unknown char: " + c, startLine, startCol, java.util.List.of());
+        TokenType t = switch (c) {
+            case '+' -> TokenType.PLUS;
+            case '-' -> TokenType.MINUS;
+            case '*' -> TokenType.MUL;
+            case '/' -> TokenType.DIV;
+            case '%' -> TokenType.MOD;
+            case '=' -> follows('=') ? TokenType.EQ : TokenType.ASSIGN;
+            case '!' -> follows('=') ? TokenType.NE : TokenType.NOT;
+            case '&' -> TokenType.AND;
+            case '|' -> TokenType.OR;
+            case '>' -> follows('=') ? TokenType.GE : TokenType.GT;
+            case '<' -> follows('=') ? TokenType.LE : TokenType.LT;
+            case ',' -> TokenType.COMMA;
+            case ';' -> TokenType.SEMI;
+            case ':' -> TokenType.COLON;
+            case '.' -> TokenType.DOT;
+            case '(' -> TokenType.LPAREN;
+            case ')' -> TokenType.RPAREN;
+            case '[' -> TokenType.LBRACKET;
+            case ']' -> TokenType.RBRACKET;
+            case '{' -> TokenType.LBRACE;
+            case '}' -> TokenType.RBRACE;
+            default -> throw new ScriptRuntimeException("Unknown char: " + c, startLine, startCol);
         };
+        add(t, start, pos, startLine, startCol, -1);
+        return true;
+    }
+
+    // Consumes the next char if it is c.
+    private boolean follows(char c) {
+        if (pos < limit && input.charAt(pos) == c) {
+            advance();
+            return true;
+        }
+        return false;
     }
 
     private void advance() {
-        if (pos >= input.length()) return;
+        if (pos >= limit) return;
         char c = input.charAt(pos);
         pos++;
         if (c == '\n') {
-            line++;
-            col = 1;
+            lineNo++;
+            colNo = 1;
         } else {
-            col++;
+            colNo++;
+        }
+    }
+
+    /**
+     * Open-addressing table from source ranges to interned names, seeded with the
+     * keywords and type names so one lookup also classifies a word.
+     */
+    private static final class Symbols {
+        private String[] names = new String[64];
+        private int[] types = new int[64];
+        // Symbol + 1 per hash slot, 0 when empty.
+        private int[] table = new int[128];
+        private int size;
+
+        Symbols() {
+            String[] keywords = {"fun", "var", "return", "if", "else", "for", "import", "as", "true", "false", "null"};
+            TokenType[] kinds = {TokenType.FUN, TokenType.VAR, TokenType.RETURN, TokenType.IF, TokenType.ELSE,
+                    TokenType.FOR, TokenType.IMPORT, TokenType.AS, TokenType.TRUE, TokenType.FALSE, TokenType.NULL};
+            for (int i = 0; i < keywords.length; i++) {
+                types[intern(keywords[i], 0, keywords[i].length())] = kinds[i].ordinal();
+            }
+            for (String type : new String[]{"NULL", "NUMBER", "STRING", "BOOLEAN", "ARRAY", "STRUCTURE", "FUNCTION"}) {
+                types[intern(type, 0, type.length())] = TokenType.TYPE.ordinal();
+            }
+        }
+
+        String name(int sym) {
+            return names[sym];
+        }
+
+        TokenType type(int sym) {
+            return TYPES[types[sym]];
+        }
+
+        int intern(String s, int start, int end) {
+            int h = 0;
+            for (int i = start; i < end; i++) h = 31 * h + s.charAt(i);
+            int mask = table.length - 1;
+            for (int slot = mix(h) & mask; ; slot = (slot + 1) & mask) {
+                int sym = table[slot] - 1;
+                if (sym < 0) break;
+                String name = names[sym];
+                if (name.length() == end - start && s.regionMatches(start, name, 0, end - start)) return sym;
+            }
+            if (size == names.length) {
+                names = Arrays.copyOf(names, size * 2);
+                types = Arrays.copyOf(types, size * 2);
+            }
+            int sym = size++;
+            names[sym] = s.substring(start, end);
+            types[sym] = TokenType.IDENT.ordinal();
+            if (size * 2 > table.length) {
+                rehash();
+            } else {
+                place(sym, h);
+            }
+            return sym;
+        }
+
+        private void rehash() {
+            table = new int[table.length * 2];
+            for (int sym = 0; sym < size; sym++) place(sym, names[sym].hashCode());
+        }
+
+        private void place(int sym, int h) {
+            int mask = table.length - 1;
+            int slot = mix(h) & mask;
+            while (table[slot] != 0) slot = (slot + 1) & mask;
+            table[slot] = sym + 1;
+        }
+
+        private static int mix(int h) {
+            return h ^ (h >>> 16);
         }
     }
 }
@@ -0,0 +1,91 @@
+package analyze;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Binds every CallExpr of a program once, either to a registered builtin or to the
+ * Function it names, so calls do not go through name lookups at runtime.
+ */
+public class Linker {
+    private final List<CallExpr> calls = new ArrayList<>();
+    private final FunctionTable funcs;
+
+    private Linker(FunctionTable funcs) {
+        this.funcs = funcs;
+    }
+
+    static void link(FunctionTable funcs) {
+        link(funcs, funcs.values(), null);
+    }
+
+    // Links code added to funcs, e.g. by eval(). Call sites linked earlier are not
+    // revisited: they see the new table version and rebind on their next call.
+    static void link(FunctionTable funcs, Collection<Function> added, Expr tail) {
+        Linker l = new Linker(funcs);
+        int known = funcs.boundNames.size();
+        for (Function f : added) l.function(f);
+        if (tail != null) l.expr(tail);
+        if (funcs.boundNames.size() != known) funcs.version++;
+        for (CallExpr c : l.calls) c.link(funcs);
+    }
+
+    private void function(Function f) {
+        funcs.boundNames.addAll(f.params);
+        for (Stmt s : f.body) stmt(s);
+    }
+
+    private void stmt(Stmt s) {
+        if (s instanceof VarStmt vs) {
+            funcs.boundNames.add(vs.name);
+            expr(vs.expr);
+        } else if (s instanceof ExprStmt es) {
+            expr(es.expr);
+        } else if (s instanceof ReturnStmt rs) {
+            expr(rs.expr);
+        } else if (s instanceof IfStmt is) {
+            expr(is.cond);
+            for (Stmt t : is.thenBranch) stmt(t);
+            if (is.elseBranch != null) {
+                for (Stmt t : is.elseBranch) stmt(t);
+            }
+        } else if (s instanceof ForStmt fs) {
+            if (fs.init != null) stmt(fs.init);
+            if (fs.cond != null) expr(fs.cond);
+            if (fs.incr != null) expr(fs.incr);
+            for (Stmt t : fs.body) stmt(t);
+        }
+    }
+
+    private void expr(Expr e) {
+        if (e instanceof CallExpr c) {
+            calls.add(c);
+            for (Expr arg : c.args) expr(arg);
+        } else if (e instanceof AssignExpr a) {
+            funcs.boundNames.add(a.name);
+            expr(a.value);
+        } else if (e instanceof BinExpr b) {
+            expr(b.l);
+            expr(b.r);
+        } else if (e instanceof UnaryExpr u) {
+            expr(u.expr);
+        } else if (e instanceof ListExpr l) {
+            for (Expr item : l.items) expr(item);
+        } else if (e instanceof DictExpr d) {
+            for (Expr value : d.values) expr(value);
+        } else if (e instanceof IndexExpr ix) {
+            expr(ix.target);
+            expr(ix.index);
+        } else if (e instanceof SetIndexExpr sx) {
+            expr(sx.target);
+            expr(sx.value);
+            expr(sx.index);
+        } else if (e instanceof GetFieldExpr g) {
+            expr(g.target);
+        } else if (e instanceof MethodCallExpr m) {
+            expr(m.target);
+            for (Expr arg : m.args) expr(arg);
+        }
+    }
+}
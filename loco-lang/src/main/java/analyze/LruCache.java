@@ -0,0 +1,85 @@
+package analyze;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.ToLongBiFunction;
+
+/**
+ * Least recently used cache bounded by the total weight of its values. A value
+ * heavier than the whole budget is never stored. All methods are synchronized, so one
+ * cache can be shared between threads; values must not change while they are in it.
+ */
+public class LruCache<K, V> {
+    private final LinkedHashMap<K, V> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final long maxWeight;
+    private final ToLongBiFunction<K, V> weigher;
+    private long weight;
+    private long hits;
+    private long misses;
+
+    LruCache(long maxWeight, ToLongBiFunction<K, V> weigher) {
+        this.maxWeight = maxWeight;
+        this.weigher = weigher;
+    }
+
+    synchronized V get(K key) {
+        V v = entries.get(key);
+        if (v == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return v;
+    }
+
+    // Removes and returns the value for key, for callers that need it to themselves
+    // until they put it back.
+    synchronized V take(K key) {
+        V v = entries.remove(key);
+        if (v == null) {
+            misses++;
+        } else {
+            hits++;
+            weight -= weigher.applyAsLong(key, v);
+        }
+        return v;
+    }
+
+    synchronized void put(K key, V value) {
+        long w = weigher.applyAsLong(key, value);
+        if (w > maxWeight) return;
+        V old = entries.put(key, value);
+        if (old != null) weight -= weigher.applyAsLong(key, old);
+        weight += w;
+        Iterator<Map.Entry<K, V>> eldest = entries.entrySet().iterator();
+        while (weight > maxWeight) {
+            Map.Entry<K, V> e = eldest.next();
+            weight -= weigher.applyAsLong(e.getKey(), e.getValue());
+            eldest.remove();
+        }
+    }
+
+    synchronized long hits() {
+        return hits;
+    }
+
+    synchronized long misses() {
+        return misses;
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    synchronized double hitRate() {
+        return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return entries.size() + " entries, weight " + weight + "/" + maxWeight + ", " + hits + " hits, " + misses + " misses"
+                + String.format(Locale.ROOT, " (%.1f%% hit rate)", 100 * hitRate());
+    }
+}
@@ -0,0 +1,390 @@
+package analyze;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * AST optimizer run between parsing and resolution. Each pass rewrites a function
+ * body bottom-up; passes run in order over the whole program, so later passes see
+ * the result of earlier ones. A pass must keep the program's observable behavior,
+ * including which runtime errors it raises and where.
+ */
+public class Optimizer {
+    interface Pass {
+        String name();
+
+        // Replacement for e; the children of e have already been rewritten.
+        default Expr expr(Expr e) {
+            return e;
+        }
+
+        // Statements that replace s; the children of s have already been rewritten.
+        default List<Stmt> stmt(Stmt s) {
+            return List.of(s);
+        }
+
+        // Rewrites a statement list once all its statements have been rewritten.
+        default List<Stmt> block(List<Stmt> stmts) {
+            return stmts;
+        }
+    }
+
+    // Passes in pipeline order, by the name used to disable them.
+    static final Map<String, Pass> PASSES = new LinkedHashMap<>();
+
+    static {
+        for (Pass p : List.of(new ConstantFolding(), new StrengthReduction(), new DeadBranchElimination())) {
+            PASSES.put(p.name(), p);
+        }
+    }
+
+    private final List<Pass> passes = new ArrayList<>();
+
+    public Optimizer() {
+        this(Set.of());
+    }
+
+    public Optimizer(Set<String> disabled) {
+        for (String name : disabled) {
+            if (!PASSES.containsKey(name)) {
+                throw new IllegalArgumentException("Unknown optimizer pass: " + name + " (known: " + PASSES.keySet() + ")");
+            }
+        }
+        for (Pass p : PASSES.values()) {
+            if (!disabled.contains(p.name())) passes.add(p);
+        }
+    }
+
+    static Optimizer none() {
+        return new Optimizer(PASSES.keySet());
+    }
+
+    // Names of the enabled passes, in order.
+    String signature() {
+        List<String> names = new ArrayList<>();
+        for (Pass p : passes) names.add(p.name());
+        return String.join(",", names);
+    }
+
+    void optimize(Map<String, Function> funcs) {
+        for (Pass p : passes) {
+            for (Function f : funcs.values()) {
+                f.body = block(p, f.body);
+            }
+        }
+    }
+
+    Expr optimize(Expr e) {
+        for (Pass p : passes) {
+            e = expr(p, e);
+        }
+        return e;
+    }
+
+    private static List<Stmt> block(Pass p, List<Stmt> body) {
+        List<Stmt> out = new ArrayList<>(body.size());
+        for (Stmt s : body) {
+            children(p, s);
+            out.addAll(p.stmt(s));
+        }
+        return p.block(out);
+    }
+
+    private static void children(Pass p, Stmt s) {
+        if (s instanceof VarStmt vs) {
+            vs.expr = expr(p, vs.expr);
+        } else if (s instanceof ExprStmt es) {
+            es.expr = expr(p, es.expr);
+        } else if (s instanceof ReturnStmt rs) {
+            rs.expr = expr(p, rs.expr);
+        } else if (s instanceof IfStmt is) {
+            is.cond = expr(p, is.cond);
+            is.thenBranch = block(p, is.thenBranch);
+            if (is.elseBranch != null) is.elseBranch = block(p, is.elseBranch);
+        } else if (s instanceof ForStmt fs) {
+            // The init keeps its place in the loop header, so only its expressions are rewritten.
+            if (fs.init != null) children(p, fs.init);
+            if (fs.cond != null) fs.cond = expr(p, fs.cond);
+            if (fs.incr != null) fs.incr = expr(p, fs.incr);
+            fs.body = block(p, fs.body);
+        }
+    }
+
+    private static Expr expr(Pass p, Expr e) {
+        if (e instanceof BinExpr b) {
+            b.l = expr(p, b.l);
+            b.r = expr(p, b.r);
+        } else if (e instanceof UnaryExpr u) {
+            u.expr = expr(p, u.expr);
+        } else if (e instanceof AssignExpr a) {
+            a.value = expr(p, a.value);
+        } else if (e instanceof CallExpr c) {
+            c.args = exprs(p, c.args);
+        } else if (e instanceof ListExpr l) {
+            l.items = exprs(p, l.items);
+        } else if (e instanceof DictExpr d) {
+            d.values = exprs(p, d.values);
+        } else if (e instanceof IndexExpr ix) {
+            ix.target = expr(p, ix.target);
+            ix.index = expr(p, ix.index);
+        } else if (e instanceof SetIndexExpr sx) {
+            sx.target = expr(p, sx.target);
+            sx.index = expr(p, sx.index);
+            sx.value = expr(p, sx.value);
+        } else if (e instanceof GetFieldExpr g) {
+            g.target = expr(p, g.target);
+        } else if (e instanceof MethodCallExpr m) {
+            m.target = expr(p, m.target);
+            m.args = exprs(p, m.args);
+        }
+        return p.expr(e);
+    }
+
+    private static List<Expr> exprs(Pass p, List<Expr> es) {
+        List<Expr> out = new ArrayList<>(es.size());
+        for (Expr e : es) out.add(expr(p, e));
+        return out;
+    }
+
+    static boolean isLiteral(Expr e) {
+        return e instanceof NumExpr || e instanceof StrExpr || e instanceof BoolExpr || e instanceof ConstExpr;
+    }
+
+    // True when e can only evaluate to a Boolean (or fail).
+    static boolean isBoolean(Expr e) {
+        if (e instanceof BoolExpr) return true;
+        if (e instanceof UnaryExpr u) return u.op == TokenType.NOT;
+        if (e instanceof BinExpr b) {
+            return switch (b.op) {
+                case LT, LE, GT, GE, EQ, NE, AND, OR -> true;
+                default -> false;
+            };
+        }
+        return false;
+    }
+
+    /**
+     * Evaluates operators whose operands are all literals. An operation that would fail
+     * at runtime is left in place so the error is still raised there.
+     */
+    static class ConstantFolding implements Pass {
+        // Literal operands never look anything up, but an operation that fails still
+        // builds its error from the Env, so this one has a run of its own.
+        private static final Env FOLD_ENV = new Env(new RunContext(new FunctionTable(Map.of())), null);
+
+        public String name() {
+            return "fold";
+        }
+
+        public Expr expr(Expr e) {
+            if (e instanceof BinExpr b && (b.op == TokenType.AND || b.op == TokenType.OR) && isLiteral(b.l)) {
+                // A literal left operand either decides the result or leaves the right one's truth value.
+                boolean left = Env.isTruthy(b.l.eval(null));
+                if (left == (b.op == TokenType.OR)) return new BoolExpr(left, b.line, b.col);
+                if (isBoolean(b.r)) return b.r;
+            }
+            if (e instanceof BinExpr b && isLiteral(b.l) && isLiteral(b.r)) {
+                return fold(new BinExpr(b.l, b.op, b.r, b.line, b.col), b.line, b.col, e);
+            }
+            if (e instanceof UnaryExpr u && isLiteral(u.expr)) {
+                return fold(new UnaryExpr(u.op, u.expr, u.line, u.col), u.line, u.col, e);
+            }
+            return e;
+        }
+
+        private static Expr fold(Expr copy, int line, int col, Expr original) {
+            Object v;
+            try {
+                v = copy.eval(FOLD_ENV);
+            } catch (ScriptRuntimeException | TypeErrorException ex) {
+                return original;
+            }
+            if (v instanceof Double d) return new NumExpr(d, line, col);
+            if (ScriptString.flat(v) instanceof String s) return new StrExpr(s, line, col);
+            if (v instanceof Boolean bool) return new BoolExpr(bool, line, col);
+            return original;
+        }
+    }
+
+    /**
+     * Algebraic identities and cheaper equivalents. Only rewrites that hold for every
+     * operand type are applied unless the operand is known to evaluate to a number.
+     */
+    static class StrengthReduction implements Pass {
+        public String name() {
+            return "strength";
+        }
+
+        public Expr expr(Expr e) {
+            if (e instanceof BinExpr b) return binary(b);
+            if (e instanceof UnaryExpr u) return unary(u);
+            return e;
+        }
+
+        private static Expr binary(BinExpr b) {
+            switch (b.op) {
+                case MUL -> {
+                    if (isNumber(b.r, 1) && isNumeric(b.l)) return b.l;
+                    if (isNumber(b.l, 1) && isNumeric(b.r)) return b.r;
+                }
+                case DIV -> {
+                    if (isNumber(b.r, 1) && isNumeric(b.l)) return b.l;
+                    // Both sides go through toNumber either way, and scaling by a power
+                    // of two is exact, so x / 2^k == x * 2^-k for every x.
+                    if (b.r instanceof NumExpr n && isPowerOfTwo(n.v)) {
+                        b.op = TokenType.MUL;
+                        b.r = new NumExpr(1 / n.v, n.line, n.col);
+                    }
+                }
+                case MINUS -> {
+                    // x + 0 is not an identity: -0.0 + 0 is 0.0.
+                    if (isNumber(b.r, 0) && isNumeric(b.l)) return b.l;
+                }
+                default -> {
+                }
+            }
+            return b;
+        }
+
+        private static Expr unary(UnaryExpr u) {
+            if (u.op == TokenType.MINUS && u.expr instanceof UnaryExpr inner
+                    && inner.op == TokenType.MINUS && isNumeric(inner.expr)) {
+                return inner.expr;
+            }
+            if (u.op != TokenType.NOT) return u;
+            if (u.expr instanceof UnaryExpr inner && inner.op == TokenType.NOT && isBoolean(inner.expr)) {
+                return inner.expr;
+            }
+            // Comparisons order all operands totally (Double.compare, String.compareTo),
+            // so a negated comparison is the complementary one.
+            if (u.expr instanceof BinExpr b) {
+                TokenType negated = switch (b.op) {
+                    case LT -> TokenType.GE;
+                    case LE -> TokenType.GT;
+                    case GT -> TokenType.LE;
+                    case GE -> TokenType.LT;
+                    case EQ -> TokenType.NE;
+                    case NE -> TokenType.EQ;
+                    default -> null;
+                };
+                if (negated != null) {
+                    b.op = negated;
+                    return b;
+                }
+            }
+            return u;
+        }
+
+        private static boolean isNumber(Expr e, double v) {
+            return e instanceof NumExpr n && n.v == v;
+        }
+
+        private static boolean isPowerOfTwo(double v) {
+            double a = Math.abs(v);
+            return a != 0 && !Double.isInfinite(a) && a == Math.scalb(1.0, Math.getExponent(a))
+                    && Math.getExponent(a) > Double.MIN_EXPONENT && Math.getExponent(a) < Double.MAX_EXPONENT;
+        }
+
+        // True when e can only evaluate to a Double (or fail).
+        private static boolean isNumeric(Expr e) {
+            if (e instanceof NumExpr) return true;
+            if (e instanceof UnaryExpr u) return u.op == TokenType.MINUS;
+            if (e instanceof BinExpr b) {
+                return switch (b.op) {
+                    case MINUS, MUL, DIV, MOD -> true;
+                    case PLUS -> isNumeric(b.l) && isNumeric(b.r);
+                    default -> false;
+                };
+            }
+            return false;
+        }
+
+    }
+
+    /**
+     * Drops branches and loops whose condition is a literal, statements after a
+     * return, and expression statements that are bare literals. A surviving branch is
+     * merged into the enclosing block when it cannot bind anything in its own scope.
+     */
+    static class DeadBranchElimination implements Pass {
+        public String name() {
+            return "dead-branch";
+        }
+
+        public List<Stmt> stmt(Stmt s) {
+            if (s instanceof ExprStmt es && isLiteral(es.expr)) {
+                return List.of();
+            }
+            if (s instanceof IfStmt is && isLiteral(is.cond)) {
+                if (Env.isTruthy(is.cond.eval(null))) {
+                    return branch(is, is.thenBranch);
+                }
+                return is.elseBranch == null ? List.of() : branch(is, is.elseBranch);
+            }
+            if (s instanceof ForStmt fs && fs.cond != null && isLiteral(fs.cond)) {
+                if (Env.isTruthy(fs.cond.eval(null))) {
+                    fs.cond = null;
+                } else if (fs.init == null || isPureInit(fs.init)) {
+                    return List.of();
+                }
+            }
+            return List.of(s);
+        }
+
+        public List<Stmt> block(List<Stmt> stmts) {
+            for (int i = 0; i < stmts.size(); i++) {
+                if (stmts.get(i) instanceof ReturnStmt) {
+                    return stmts.subList(0, i + 1);
+                }
+            }
+            return stmts;
+        }
+
+        private static List<Stmt> branch(IfStmt is, List<Stmt> body) {
+            if (body.isEmpty()) return List.of();
+            for (Stmt s : body) {
+                if (!isScopeNeutral(s)) {
+                    // Keep the block so its bindings stay local to it.
+                    return List.of(new IfStmt(new BoolExpr(true, 0, 0), body, null));
+                }
+            }
+            return body;
+        }
+
+        // True when running s directly in the enclosing block binds nothing there that
+        // its own block would have held: no declarations, assignments (which define
+        // undefined names in the innermost scope) or eval calls outside nested blocks.
+        private static boolean isScopeNeutral(Stmt s) {
+            if (s instanceof VarStmt) return false;
+            if (s instanceof ExprStmt es) return isNeutral(es.expr);
+            if (s instanceof ReturnStmt rs) return isNeutral(rs.expr);
+            if (s instanceof IfStmt is) return isNeutral(is.cond);
+            return s instanceof ForStmt;
+        }
+
+        private static boolean isNeutral(Expr e) {
+            if (e instanceof AssignExpr) return false;
+            if (e instanceof CallExpr c) {
+                if (c.name.equals("eval")) return false;
+                return c.args.stream().allMatch(DeadBranchElimination::isNeutral);
+            }
+            if (e instanceof BinExpr b) return isNeutral(b.l) && isNeutral(b.r);
+            if (e instanceof UnaryExpr u) return isNeutral(u.expr);
+            if (e instanceof ListExpr l) return l.items.stream().allMatch(DeadBranchElimination::isNeutral);
+            if (e instanceof DictExpr d) return d.values.stream().allMatch(DeadBranchElimination::isNeutral);
+            if (e instanceof IndexExpr ix) return isNeutral(ix.target) && isNeutral(ix.index);
+            if (e instanceof SetIndexExpr sx) return isNeutral(sx.target) && isNeutral(sx.index) && isNeutral(sx.value);
+            if (e instanceof GetFieldExpr g) return isNeutral(g.target);
+            if (e instanceof MethodCallExpr m) return isNeutral(m.target);
+            return true;
+        }
+
+        private static boolean isPureInit(Stmt init) {
+            if (init instanceof VarStmt vs) return isLiteral(vs.expr);
+            return init instanceof ExprStmt es && es.expr instanceof AssignExpr a && isLiteral(a.value);
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package analyze;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * The pmap, filter and reduce builtins. For long lists and callbacks that pass the
+ * Purity check, pmap and filter run the callback on the common ForkJoinPool, each task
+ * in its own Env whose script stack continues the caller's; otherwise it runs in order
+ * in the caller's Env, like map. Results come back in list order either way, and the
+ * first failing element by index decides which error is thrown. reduce always folds
+ * in order on the calling thread.
+ */
+public class Parallel {
+    // Shorter lists are always handled on the calling thread.
+    private static final int PARALLEL_MIN = 512;
+    // Tasks per pool thread; more than one lets idle threads steal uneven work.
+    private static final int TASKS_PER_THREAD = 8;
+
+    private interface Body {
+        void run(Env env, int i);
+    }
+
+    static Object pmap(Env env, List<Expr> args, int line, int col) {
+        expectArgs("pmap", args, 2, env, line, col);
+        Object target = args.get(0).eval(env);
+        FunctionRef fn = callback("pmap", args.get(1).eval(env), env, line, col);
+        Object[] items = elements("pmap", target, env, line, col);
+        Object[] out = new Object[items.length];
+        boolean parallel = items.length >= PARALLEL_MIN && Purity.isPure(fn, env.funcs);
+        forEach(env, items.length, parallel, (e, i) -> out[i] = ScriptString.flat(apply(e, fn, line, col, items[i])));
+        if (target instanceof CharSequence) {
+            StringBuilder s = new StringBuilder();
+            for (Object r : out) s.append(String.valueOf(r));
+            return s.toString();
+        }
+        return ScriptList.of(out);
+    }
+
+    static Object filter(Env env, List<Expr> args, int line, int col) {
+        expectArgs("filter", args, 2, env, line, col);
+        Object target = args.get(0).eval(env);
+        FunctionRef fn = callback("filter", args.get(1).eval(env), env, line, col);
+        Object[] items = elements("filter", target, env, line, col);
+        boolean[] keep = new boolean[items.length];
+        boolean parallel = items.length >= PARALLEL_MIN && Purity.isPure(fn, env.funcs);
+        forEach(env, items.length, parallel, (e, i) -> keep[i] = Env.isTruthy(apply(e, fn, line, col, items[i])));
+        List<Object> out = new ArrayList<>();
+        for (int i = 0; i < items.length; i++) {
+            if (keep[i]) out.add(items[i]);
+        }
+        return ScriptList.of(out.toArray());
+    }
+
+    // reduce(list, fn, init) is fn(...fn(fn(init, list[0]), list[1])..., list[n - 1]). Splitting
+    // that fold would need fn to be associative and init to be its identity, which a
+    // script function does not declare, so it is never split.
+    static Object reduce(Env env, List<Expr> args, int line, int col) {
+        expectArgs("reduce", args, 3, env, line, col);
+        Object target = args.get(0).eval(env);
+        FunctionRef fn = callback("reduce", args.get(1).eval(env), env, line, col);
+        Object init = ScriptString.flat(args.get(2).eval(env));
+        Object acc = init;
+        for (Object item : elements("reduce", target, env, line, col)) {
+            acc = ScriptString.flat(apply(env, fn, line, col, acc, item));
+        }
+        return acc;
+    }
+
+    private static Object apply(Env env, FunctionRef fn, int line, int col, Object... values) {
+        List<Expr> args = new ArrayList<>(values.length);
+        for (Object v : values) args.add(new ConstExpr(v));
+        return fn.call(env, args, line, col);
+    }
+
+    private static void forEach(Env env, int n, boolean parallel, Body body) {
+        if (!parallel) {
+            for (int i = 0; i < n; i++) body.run(env, i);
+            return;
+        }
+        int grain = Math.max(1, n / (TASKS_PER_THREAD * ForkJoinPool.getCommonPoolParallelism()));
+        Range all = new Range(env.run, env.stack.top, body, new Failure(), 0, n, grain);
+        ForkJoinPool.commonPool().invoke(all);
+        all.failure.rethrow();
+    }
+
+    // Earliest failing index seen by any task and its exception.
+    private static final class Failure {
+        private int index = Integer.MAX_VALUE;
+        private RuntimeException error;
+
+        synchronized void record(int i, RuntimeException e) {
+            if (i < index) {
+                index = i;
+                error = e;
+            }
+        }
+
+        synchronized boolean before(int i) {
+            return index < i;
+        }
+
+        synchronized void rethrow() {
+            if (error != null) throw error;
+        }
+    }
+
+    private static final class Range extends RecursiveAction {
+        final RunContext run;
+        final ScriptFrame caller;
+        final Body body;
+        final Failure failure;
+        final int lo;
+        final int hi;
+        final int grain;
+
+        Range(RunContext run, ScriptFrame caller, Body body, Failure failure, int lo, int hi, int grain) {
+            this.run = run;
+            this.caller = caller;
+            this.body = body;
+            this.failure = failure;
+            this.lo = lo;
+            this.hi = hi;
+            this.grain = grain;
+        }
+
+        @Override
+        protected void compute() {
+            if (failure.before(lo)) return;
+            if (hi - lo > grain) {
+                int mid = (lo + hi) >>> 1;
+                invokeAll(new Range(run, caller, body, failure, lo, mid, grain),
+                        new Range(run, caller, body, failure, mid, hi, grain));
+                return;
+            }
+            // Pure callbacks read nothing outside their own call, so the Env needs no parent.
+            Env env = new Env(run, null);
+            env.stack.top = caller;
+            for (int i = lo; i < hi; i++) {
+                try {
+                    body.run(env, i);
+                } catch (RuntimeException e) {
+                    failure.record(i, e);
+                    return;
+                }
+            }
+        }
+    }
+
+    private static void expectArgs(String name, List<Expr> args, int n, Env env, int line, int col) {
+        if (args.size() != n) {
+            throw new ScriptRuntimeException(name + "() expects " + n + " arguments", line, col, env);
+        }
+    }
+
+    private static FunctionRef callback(String name, Object v, Env env, int line, int col) {
+        if (v instanceof FunctionRef fr) return fr;
+        if (v instanceof CharSequence s) return new FunctionRef(s.toString(), env.funcs);
+        throw new ScriptRuntimeException(name + "() expects function reference or name", line, col, env);
+    }
+
+    private static Object[] elements(String name, Object target, Env env, int line, int col) {
+        if (target instanceof List<?> list) return list.toArray();
+        if (target instanceof CharSequence s) {
+            Object[] out = new Object[s.length()];
+            for (int i = 0; i < out.length; i++) out[i] = ScriptString.ofChar(s.charAt(i));
+            return out;
+        }
+        throw new ScriptRuntimeException(name + "() expects list or string", line, col, env);
+    }
+}
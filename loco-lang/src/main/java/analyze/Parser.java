@@ -7,7 +7,8 @@ import java.util.Map;
 
 public class Parser {
     Lexer lex;
-    Token cur;
+    // Index of the current token in lex.
+    int p;
     java.util.List<ImportRef> imports = new java.util.ArrayList<>();
     // When true, '>' (and other comparison ops) terminate the current expr.
     // This avoids consuming dict literal close tokens as comparison operators.
@@ -15,13 +16,29 @@ public class Parser {
 
     Parser(Lexer l) {
         lex = l;
-        cur = lex.next();
+        if (lex.errorIndex == 0) throw lex.error;
     }
 
     void eat(TokenType t) {
-        if (cur.type != t)
-            throw new ScriptRuntimeException("Expected " + t + " got " + cur.type, cur.line, cur.col, java.util.List.of());
-        cur = lex.next();
+        if (type() != t)
+            throw new ScriptRuntimeException("Expected " + t + " got " + type(), line(), col());
+        if (++p == lex.errorIndex) throw lex.error;
+    }
+
+    TokenType type() {
+        return lex.type(p);
+    }
+
+    String text() {
+        return lex.text(p);
+    }
+
+    int line() {
+        return lex.line(p);
+    }
+
+    int col() {
+        return lex.col(p);
     }
 
     Expr expr() {
@@ -30,7 +47,7 @@ public class Parser {
 
     Expr assign() {
         Expr e = or();
-        if (cur.type == TokenType.ASSIGN) {
+        if (type() == TokenType.ASSIGN) {
             eat(TokenType.ASSIGN);
             Expr value = assign();
             if (e instanceof VarExpr v) {
@@ -39,160 +56,160 @@ public class Parser {
             if (e instanceof IndexExpr idx) {
                 return new SetIndexExpr(idx.target, idx.index, value, idx.line, idx.col);
             }
-            throw new ScriptRuntimeException("Invalid assignment target", cur.line, cur.col, java.util.List.of());
+            throw new ScriptRuntimeException("Invalid assignment target", line(), col());
         }
         return e;
     }
 
     Expr or() {
         Expr e = and();
-        while (cur.type == TokenType.OR) {
-            Token opTok = cur;
-            TokenType op = cur.type;
+        while (type() == TokenType.OR) {
+            int opTok = p;
+            TokenType op = type();
             eat(op);
-            e = new BinExpr(e, op, and(), opTok.line, opTok.col);
+            e = new BinExpr(e, op, and(), lex.line(opTok), lex.col(opTok));
         }
         return e;
     }
 
     Expr and() {
         Expr e = equality();
-        while (cur.type == TokenType.AND) {
-            Token opTok = cur;
-            TokenType op = cur.type;
+        while (type() == TokenType.AND) {
+            int opTok = p;
+            TokenType op = type();
             eat(op);
-            e = new BinExpr(e, op, equality(), opTok.line, opTok.col);
+            e = new BinExpr(e, op, equality(), lex.line(opTok), lex.col(opTok));
         }
         return e;
     }
 
     Expr equality() {
         Expr e = comparison();
-        while (cur.type == TokenType.EQ || cur.type == TokenType.NE) {
-            Token opTok = cur;
-            TokenType op = cur.type;
+        while (type() == TokenType.EQ || type() == TokenType.NE) {
+            int opTok = p;
+            TokenType op = type();
             eat(op);
-            e = new BinExpr(e, op, comparison(), opTok.line, opTok.col);
+            e = new BinExpr(e, op, comparison(), lex.line(opTok), lex.col(opTok));
         }
         return e;
     }
 
     Expr comparison() {
         Expr e = add();
-        while (!stopAtComparison && (cur.type == TokenType.GT || cur.type == TokenType.GE
-                || cur.type == TokenType.LT || cur.type == TokenType.LE)) {
-            Token opTok = cur;
-            TokenType op = cur.type;
+        while (!stopAtComparison && (type() == TokenType.GT || type() == TokenType.GE
+                || type() == TokenType.LT || type() == TokenType.LE)) {
+            int opTok = p;
+            TokenType op = type();
             eat(op);
-            e = new BinExpr(e, op, add(), opTok.line, opTok.col);
+            e = new BinExpr(e, op, add(), lex.line(opTok), lex.col(opTok));
         }
         return e;
     }
 
     Expr add() {
         Expr e = term();
-        while (cur.type == TokenType.PLUS || cur.type == TokenType.MINUS) {
-            Token opTok = cur;
-            TokenType op = cur.type;
+        while (type() == TokenType.PLUS || type() == TokenType.MINUS) {
+            int opTok = p;
+            TokenType op = type();
             eat(op);
-            e = new BinExpr(e, op, term(), opTok.line, opTok.col);
+            e = new BinExpr(e, op, term(), lex.line(opTok), lex.col(opTok));
         }
         return e;
     }
 
     Expr term() {
         Expr e = factor();
-        while (cur.type == TokenType.MUL || cur.type == TokenType.DIV || cur.type == TokenType.MOD) {
-            Token opTok = cur;
-            TokenType op = cur.type;
+        while (type() == TokenType.MUL || type() == TokenType.DIV || type() == TokenType.MOD) {
+            int opTok = p;
+            TokenType op = type();
             eat(op);
-            e = new BinExpr(e, op, factor(), opTok.line, opTok.col);
+            e = new BinExpr(e, op, factor(), lex.line(opTok), lex.col(opTok));
         }
         return e;
     }
 
     Expr factor() {
-        if (cur.type == TokenType.NOT) {
-            Token tok = cur;
+        if (type() == TokenType.NOT) {
+            int tok = p;
             eat(TokenType.NOT);
-            return new UnaryExpr(TokenType.NOT, factor(), tok.line, tok.col);
+            return new UnaryExpr(TokenType.NOT, factor(), lex.line(tok), lex.col(tok));
         }
-        if (cur.type == TokenType.MINUS) {
-            Token tok = cur;
+        if (type() == TokenType.MINUS) {
+            int tok = p;
             eat(TokenType.MINUS);
-            return new UnaryExpr(TokenType.MINUS, factor(), tok.line, tok.col);
+            return new UnaryExpr(TokenType.MINUS, factor(), lex.line(tok), lex.col(tok));
         }
 
-        if (cur.type == TokenType.NUMBER) {
-            Token tok = cur;
-            double v = Double.parseDouble(cur.text);
+        if (type() == TokenType.NUMBER) {
+            int tok = p;
+            double v = lex.number(p);
             eat(TokenType.NUMBER);
-            return postfix(new NumExpr(v, tok.line, tok.col));
+            return postfix(new NumExpr(v, lex.line(tok), lex.col(tok)));
         }
 
-        if (cur.type == TokenType.STRING) {
-            Token tok = cur;
-            String v = cur.text;
+        if (type() == TokenType.STRING) {
+            int tok = p;
+            String v = text();
             eat(TokenType.STRING);
-            return postfix(new StrExpr(v, tok.line, tok.col));
+            return postfix(new StrExpr(v, lex.line(tok), lex.col(tok)));
         }
 
-        if (cur.type == TokenType.TRUE || cur.type == TokenType.FALSE) {
-            Token tok = cur;
-            boolean v = cur.type == TokenType.TRUE;
-            eat(cur.type);
-            return postfix(new BoolExpr(v, tok.line, tok.col));
+        if (type() == TokenType.TRUE || type() == TokenType.FALSE) {
+            int tok = p;
+            boolean v = type() == TokenType.TRUE;
+            eat(type());
+            return postfix(new BoolExpr(v, lex.line(tok), lex.col(tok)));
         }
-        if (cur.type == TokenType.NULL) {
-            Token tok = cur;
+        if (type() == TokenType.NULL) {
+            int tok = p;
             eat(TokenType.NULL);
             return postfix(new ConstExpr(null));
         }
-        if (cur.type == TokenType.TYPE) {
-            Token tok = cur;
-            String name = cur.text;
+        if (type() == TokenType.TYPE) {
+            int tok = p;
+            String name = text();
             eat(TokenType.TYPE);
             return postfix(new ConstExpr(new TypeLiteral(name)));
         }
 
-        if (cur.type == TokenType.LBRACKET) {
-            Token tok = cur;
+        if (type() == TokenType.LBRACKET) {
+            int tok = p;
             eat(TokenType.LBRACKET);
             List<Expr> items = new ArrayList<>();
-            if (cur.type != TokenType.RBRACKET) {
+            if (type() != TokenType.RBRACKET) {
                 items.add(expr());
-                while (cur.type == TokenType.COMMA) {
+                while (type() == TokenType.COMMA) {
                     eat(TokenType.COMMA);
                     items.add(expr());
                 }
             }
             eat(TokenType.RBRACKET);
-            return postfix(new ListExpr(items, tok.line, tok.col));
+            return postfix(new ListExpr(items, lex.line(tok), lex.col(tok)));
         }
 
-        if (cur.type == TokenType.LT) {
-            Token tok = cur;
+        if (type() == TokenType.LT) {
+            int tok = p;
             eat(TokenType.LT);
             List<DictKey> keys = new ArrayList<>();
             List<Expr> values = new ArrayList<>();
-            if (cur.type != TokenType.GT) {
+            if (type() != TokenType.GT) {
                 while (true) {
-                    if (cur.type == TokenType.STRING) {
-                        String key = cur.text;
+                    if (type() == TokenType.STRING) {
+                        String key = text();
                         eat(TokenType.STRING);
                         eat(TokenType.COLON);
                         keys.add(new DictKey(key, true));
                         values.add(exprInDictValue());
-                    } else if (cur.type == TokenType.IDENT) {
-                        String key = cur.text;
+                    } else if (type() == TokenType.IDENT) {
+                        String key = text();
                         eat(TokenType.IDENT);
                         eat(TokenType.COLON);
                         keys.add(new DictKey(key, false));
                         values.add(exprInDictValue());
                     } else {
-                        throw new ScriptRuntimeException("Expected dictionary key", cur.line, cur.col, java.util.List.of());
+                        throw new ScriptRuntimeException("Expected dictionary key", line(), col());
                     }
-                    if (cur.type == TokenType.COMMA) {
+                    if (type() == TokenType.COMMA) {
                         eat(TokenType.COMMA);
                         continue;
                     }
@@ -200,30 +217,30 @@ public class Parser {
                 }
             }
             eat(TokenType.GT);
-            return postfix(new DictExpr(keys, values, tok.line, tok.col));
+            return postfix(new DictExpr(keys, values, lex.line(tok), lex.col(tok)));
         }
 
-        if (cur.type == TokenType.IDENT) {
-            Token tok = cur;
-            String name = cur.text;
+        if (type() == TokenType.IDENT) {
+            int tok = p;
+            String name = text();
             eat(TokenType.IDENT);
-            if (cur.type == TokenType.LPAREN) {
+            if (type() == TokenType.LPAREN) {
                 eat(TokenType.LPAREN);
                 List<Expr> args = new ArrayList<>();
-                if (cur.type != TokenType.RPAREN) {
+                if (type() != TokenType.RPAREN) {
                     args.add(expr());
-                    while (cur.type == TokenType.COMMA) {
+                    while (type() == TokenType.COMMA) {
                         eat(TokenType.COMMA);
                         args.add(expr());
                     }
                 }
                 eat(TokenType.RPAREN);
-                return postfix(new CallExpr(name, args, tok.line, tok.col));
+                return postfix(new CallExpr(name, args, lex.line(tok), lex.col(tok)));
             }
-            return postfix(new VarExpr(name, tok.line, tok.col));
+            return postfix(new VarExpr(name, lex.line(tok), lex.col(tok)));
         }
 
-        if (cur.type == TokenType.LPAREN) {
+        if (type() == TokenType.LPAREN) {
             eat(TokenType.LPAREN);
             boolean prevStop = stopAtComparison;
             stopAtComparison = false;
@@ -233,7 +250,7 @@ public class Parser {
             return postfix(e);
         }
 
-        throw new ScriptRuntimeException("Bad factor", cur.line, cur.col, java.util.List.of());
+        throw new ScriptRuntimeException("Bad factor", line(), col());
     }
 
     Expr exprInDictValue() {
@@ -246,33 +263,33 @@ public class Parser {
 
     Expr postfix(Expr e) {
         while (true) {
-            if (cur.type == TokenType.LBRACKET) {
-                Token tok = cur;
+            if (type() == TokenType.LBRACKET) {
+                int tok = p;
                 eat(TokenType.LBRACKET);
                 Expr idx = expr();
                 eat(TokenType.RBRACKET);
-                e = new IndexExpr(e, idx, tok.line, tok.col);
+                e = new IndexExpr(e, idx, lex.line(tok), lex.col(tok));
                 continue;
             }
-            if (cur.type == TokenType.DOT) {
+            if (type() == TokenType.DOT) {
                 eat(TokenType.DOT);
-                Token nameTok = cur;
-                String name = cur.text;
+                int nameTok = p;
+                String name = text();
                 eat(TokenType.IDENT);
-                if (cur.type == TokenType.LPAREN) {
+                if (type() == TokenType.LPAREN) {
                     eat(TokenType.LPAREN);
                     List<Expr> args = new ArrayList<>();
-                    if (cur.type != TokenType.RPAREN) {
+                    if (type() != TokenType.RPAREN) {
                         args.add(expr());
-                        while (cur.type == TokenType.COMMA) {
+                        while (type() == TokenType.COMMA) {
                             eat(TokenType.COMMA);
                             args.add(expr());
                         }
                     }
                     eat(TokenType.RPAREN);
-                    e = new MethodCallExpr(e, name, args, nameTok.line, nameTok.col);
+                    e = new MethodCallExpr(e, name, args, lex.line(nameTok), lex.col(nameTok));
                 } else {
-                    e = new GetFieldExpr(e, name, nameTok.line, nameTok.col);
+                    e = new GetFieldExpr(e, name, lex.line(nameTok), lex.col(nameTok));
                 }
                 continue;
             }
@@ -284,7 +301,7 @@ public class Parser {
     List<Stmt> block() {
         eat(TokenType.LBRACE);
         List<Stmt> stmts = new ArrayList<>();
-        while (cur.type != TokenType.RBRACE) {
+        while (type() != TokenType.RBRACE) {
             stmts.add(statement());
         }
         eat(TokenType.RBRACE);
@@ -292,60 +309,60 @@ public class Parser {
     }
 
     Stmt statement() {
-        if (cur.type == TokenType.FOR) {
+        if (type() == TokenType.FOR) {
             eat(TokenType.FOR);
             eat(TokenType.LPAREN);
             Stmt init = null;
-            if (cur.type != TokenType.SEMI) {
-                if (cur.type == TokenType.VAR) {
+            if (type() != TokenType.SEMI) {
+                if (type() == TokenType.VAR) {
                     eat(TokenType.VAR);
-                    Token nameTok = cur;
-                    String name = cur.text;
+                    int nameTok = p;
+                    String name = text();
                     eat(TokenType.IDENT);
                     eat(TokenType.ASSIGN);
-                    init = new VarStmt(name, expr(), nameTok.line, nameTok.col);
+                    init = new VarStmt(name, expr(), lex.line(nameTok), lex.col(nameTok));
                 } else {
                     init = new ExprStmt(expr());
                 }
             }
             eat(TokenType.SEMI);
             Expr cond = null;
-            if (cur.type != TokenType.SEMI) {
+            if (type() != TokenType.SEMI) {
                 cond = expr();
             }
             eat(TokenType.SEMI);
             Expr incr = null;
-            if (cur.type != TokenType.RPAREN) {
+            if (type() != TokenType.RPAREN) {
                 incr = expr();
             }
             eat(TokenType.RPAREN);
             return new ForStmt(init, cond, incr, block());
         }
 
-        if (cur.type == TokenType.IF) {
+        if (type() == TokenType.IF) {
             eat(TokenType.IF);
             eat(TokenType.LPAREN);
             Expr cond = expr();
             eat(TokenType.RPAREN);
             List<Stmt> thenBranch = block();
             List<Stmt> elseBranch = null;
-            if (cur.type == TokenType.ELSE) {
+            if (type() == TokenType.ELSE) {
                 eat(TokenType.ELSE);
                 elseBranch = block();
             }
             return new IfStmt(cond, thenBranch, elseBranch);
         }
 
-        if (cur.type == TokenType.VAR) {
+        if (type() == TokenType.VAR) {
             eat(TokenType.VAR);
-            Token nameTok = cur;
-            String name = cur.text;
+            int nameTok = p;
+            String name = text();
             eat(TokenType.IDENT);
             eat(TokenType.ASSIGN);
-            return new VarStmt(name, expr(), nameTok.line, nameTok.col);
+            return new VarStmt(name, expr(), lex.line(nameTok), lex.col(nameTok));
         }
 
-        if (cur.type == TokenType.RETURN) {
+        if (type() == TokenType.RETURN) {
             eat(TokenType.RETURN);
             return new ReturnStmt(expr());
         }
@@ -355,130 +372,103 @@ public class Parser {
 
     Map<String, Function> parseProgram() {
         Map<String, Function> funcs = new HashMap<>();
-
-        while (cur.type != TokenType.EOF) {
-            if (cur.type == TokenType.IMPORT) {
-                eat(TokenType.IMPORT);
-                Token modTok = cur;
-                String module = cur.text;
-                eat(TokenType.IDENT);
-                if (cur.type != TokenType.DOT) {
-                    throw new ScriptRuntimeException("Expected '.' after module in import", cur.line, cur.col, java.util.List.of());
-                }
-                eat(TokenType.DOT);
-                Token nameTok = cur;
-                String name = cur.text;
-                eat(TokenType.IDENT);
-                String alias = name;
-                if (cur.type == TokenType.AS) {
-                    eat(TokenType.AS);
-                    Token aliasTok = cur;
-                    alias = cur.text;
-                    eat(TokenType.IDENT);
-                    if (alias.equals(name)) {
-                        throw new ScriptRuntimeException("Alias must be different from original name", aliasTok.line, aliasTok.col, java.util.List.of());
-                    }
-                }
-                for (ImportRef ref : imports) {
-                    if (ref.name.equals(name) && module.equals(ref.module) && ref.alias.equals(alias)) {
-                        throw new ScriptRuntimeException("Import already defined: " + module + "." + name, nameTok.line, nameTok.col, java.util.List.of());
-                    }
-                }
-                imports.add(new ImportRef(module, name, alias, nameTok.line, nameTok.col));
-                continue;
-            }
-            if (cur.type != TokenType.FUN) {
-                throw new ScriptRuntimeException("Expected fun or import", cur.line, cur.col, java.util.List.of());
-            }
-            eat(TokenType.FUN);
-            Token nameTok = cur;
-            String name = cur.text;
-            eat(TokenType.IDENT);
-            if (funcs.containsKey(name)) {
-                throw new ScriptRuntimeException("Function already defined: " + name, nameTok.line, nameTok.col, java.util.List.of());
-            }
-            eat(TokenType.LPAREN);
-
-            List<String> params = new ArrayList<>();
-            if (cur.type != TokenType.RPAREN) {
-                params.add(cur.text);
-                eat(TokenType.IDENT);
-                while (cur.type == TokenType.COMMA) {
-                    eat(TokenType.COMMA);
-                    params.add(cur.text);
-                    eat(TokenType.IDENT);
-                }
-            }
-            eat(TokenType.RPAREN);
-            funcs.put(name, new Function(params, block()));
+        for (Decl d : parseDeclarations()) {
+            if (d.function != null) funcs.put(d.name, d.function);
         }
         return funcs;
     }
 
-    ScriptResult parseScript() {
+    // Top-level declarations up to EOF, in source order.
+    List<Decl> parseDeclarations() {
         Map<String, Function> funcs = new HashMap<>();
+        List<Decl> decls = new ArrayList<>();
+        while (type() != TokenType.EOF) {
+            if (type() != TokenType.IMPORT && type() != TokenType.FUN) {
+                throw new ScriptRuntimeException("Expected fun or import", line(), col());
+            }
+            decls.add(declaration(funcs));
+        }
+        return decls;
+    }
 
-        while (cur.type != TokenType.EOF) {
-            if (cur.type == TokenType.IMPORT) {
-                eat(TokenType.IMPORT);
-                String module = cur.text;
+    // Parses the import or fun at the current token, adding it to imports or funcs.
+    Decl declaration(Map<String, Function> funcs) {
+        int first = p;
+        Decl d;
+        if (type() == TokenType.IMPORT) {
+            eat(TokenType.IMPORT);
+            String module = text();
+            eat(TokenType.IDENT);
+            if (type() != TokenType.DOT) {
+                throw new ScriptRuntimeException("Expected '.' after module in import", line(), col());
+            }
+            eat(TokenType.DOT);
+            int nameTok = p;
+            String name = text();
+            eat(TokenType.IDENT);
+            String alias = name;
+            if (type() == TokenType.AS) {
+                eat(TokenType.AS);
+                int aliasTok = p;
+                alias = text();
                 eat(TokenType.IDENT);
-                if (cur.type != TokenType.DOT) {
-                    throw new ScriptRuntimeException("Expected '.' after module in import", cur.line, cur.col, java.util.List.of());
+                if (alias.equals(name)) {
+                    throw new ScriptRuntimeException("Alias must be different from original name", lex.line(aliasTok), lex.col(aliasTok));
                 }
-                eat(TokenType.DOT);
-                Token nameTok = cur;
-                String name = cur.text;
-                eat(TokenType.IDENT);
-                String alias = name;
-                if (cur.type == TokenType.AS) {
-                    eat(TokenType.AS);
-                    Token aliasTok = cur;
-                    alias = cur.text;
-                    eat(TokenType.IDENT);
-                    if (alias.equals(name)) {
-                        throw new ScriptRuntimeException("Alias must be different from original name", aliasTok.line, aliasTok.col, java.util.List.of());
-                    }
-                }
-                for (ImportRef ref : imports) {
-                    if (ref.name.equals(name) && module.equals(ref.module) && ref.alias.equals(alias)) {
-                        throw new ScriptRuntimeException("Import already defined: " + module + "." + name, nameTok.line, nameTok.col, java.util.List.of());
-                    }
-                }
-                imports.add(new ImportRef(module, name, alias, nameTok.line, nameTok.col));
-                continue;
             }
-            if (cur.type != TokenType.FUN) {
-                break;
+            for (ImportRef ref : imports) {
+                if (ref.name.equals(name) && module.equals(ref.module) && ref.alias.equals(alias)) {
+                    throw new ScriptRuntimeException("Import already defined: " + module + "." + name, lex.line(nameTok), lex.col(nameTok));
+                }
             }
+            ImportRef ref = new ImportRef(module, name, alias, lex.line(nameTok), lex.col(nameTok));
+            imports.add(ref);
+            d = new Decl(alias, null, ref);
+        } else {
             eat(TokenType.FUN);
-            Token nameTok = cur;
-            String name = cur.text;
+            int nameTok = p;
+            String name = text();
             eat(TokenType.IDENT);
             if (funcs.containsKey(name)) {
-                throw new ScriptRuntimeException("Function already defined: " + name, nameTok.line, nameTok.col, java.util.List.of());
+                throw new ScriptRuntimeException("Function already defined: " + name, lex.line(nameTok), lex.col(nameTok));
             }
             eat(TokenType.LPAREN);
 
             List<String> params = new ArrayList<>();
-            if (cur.type != TokenType.RPAREN) {
-                params.add(cur.text);
+            if (type() != TokenType.RPAREN) {
+                params.add(text());
                 eat(TokenType.IDENT);
-                while (cur.type == TokenType.COMMA) {
+                while (type() == TokenType.COMMA) {
                     eat(TokenType.COMMA);
-                    params.add(cur.text);
+                    params.add(text());
                     eat(TokenType.IDENT);
                 }
             }
             eat(TokenType.RPAREN);
-            funcs.put(name, new Function(params, block()));
+            Function f = new Function(params, block());
+            funcs.put(name, f);
+            d = new Decl(name, f, null);
+        }
+        // A declaration ends in a name or '}', neither of which spans lines.
+        int last = p - 1;
+        d.start = lex.start(first);
+        d.end = lex.end(last);
+        d.endLine = lex.line(last);
+        d.endCol = lex.col(last) + d.end - lex.start(last);
+        return d;
+    }
+
+    ScriptResult parseScript() {
+        Map<String, Function> funcs = new HashMap<>();
+        while (type() == TokenType.IMPORT || type() == TokenType.FUN) {
+            declaration(funcs);
         }
 
         Expr tail = null;
-        if (cur.type != TokenType.EOF) {
+        if (type() != TokenType.EOF) {
             tail = expr();
-            if (cur.type != TokenType.EOF) {
-                throw new ScriptRuntimeException("Expected end of script", cur.line, cur.col, java.util.List.of());
+            if (type() != TokenType.EOF) {
+                throw new ScriptRuntimeException("Expected end of script", line(), col());
             }
         }
         return new ScriptResult(funcs, tail);
@@ -486,8 +476,8 @@ public class Parser {
 
     Expr parseExpression() {
         Expr e = expr();
-        if (cur.type != TokenType.EOF) {
-            throw new ScriptRuntimeException("Expected end of expression", cur.line, cur.col, java.util.List.of());
+        if (type() != TokenType.EOF) {
+            throw new ScriptRuntimeException("Expected end of expression", line(), col());
         }
         return e;
     }
@@ -506,6 +496,24 @@ public class Parser {
         return imports;
     }
 
+    // A top-level import or function and where it is in the source.
+    static class Decl {
+        final String name;
+        final Function function;
+        final ImportRef ref;
+        // Source range, and the position just past it.
+        int start;
+        int end;
+        int endLine;
+        int endCol;
+
+        Decl(String name, Function function, ImportRef ref) {
+            this.name = name;
+            this.function = function;
+            this.ref = ref;
+        }
+    }
+
     static class ImportRef {
         String module;
         String name;
@@ -0,0 +1,101 @@
+package analyze;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Conservative check that a function can run on another thread without anyone
+ * noticing: it and every function it calls only read their parameters and locals,
+ * assign only to resolved locals, never write into lists or maps and call no builtin
+ * with effects (println, readln, eval) or that takes a callback. Code that can reach a
+ * FunctionRef through a variable is rejected, as its target is not known here.
+ */
+public class Purity {
+    private static final Set<String> PURE_BUILTINS = Set.of("size", "toNumber", "toString", "typeOf");
+
+    private final FunctionTable funcs;
+    private final Set<Function> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    private Purity(FunctionTable funcs) {
+        this.funcs = funcs;
+    }
+
+    // Also links every call site it passes, so threads that run fn later only read them.
+    static boolean isPure(FunctionRef fn, FunctionTable funcs) {
+        fn.resolve(funcs);
+        if (fn.builtin != null) return PURE_BUILTINS.contains(fn.name);
+        return fn.function == null || new Purity(funcs).function(fn.function);
+    }
+
+    private boolean function(Function f) {
+        return !seen.add(f) || block(f.body);
+    }
+
+    private boolean block(List<Stmt> stmts) {
+        for (Stmt s : stmts) {
+            if (!stmt(s)) return false;
+        }
+        return true;
+    }
+
+    private boolean stmt(Stmt s) {
+        if (s instanceof VarStmt vs) return expr(vs.expr);
+        if (s instanceof ExprStmt es) return expr(es.expr);
+        if (s instanceof ReturnStmt rs) return expr(rs.expr);
+        if (s instanceof IfStmt is) {
+            return expr(is.cond) && block(is.thenBranch) && (is.elseBranch == null || block(is.elseBranch));
+        }
+        if (s instanceof ForStmt fs) {
+            boolean init;
+            if (fs.init instanceof ExprStmt es && es.expr instanceof AssignExpr ae) {
+                // A bare `i = ...` initializer binds a fresh loop variable.
+                init = expr(ae.value);
+            } else {
+                init = fs.init == null || stmt(fs.init);
+            }
+            return init && expr(fs.cond) && expr(fs.incr) && block(fs.body);
+        }
+        return false;
+    }
+
+    private boolean expr(Expr e) {
+        if (e == null || e instanceof NumExpr || e instanceof StrExpr || e instanceof BoolExpr || e instanceof ConstExpr) {
+            return true;
+        }
+        if (e instanceof VarExpr v) {
+            // An unresolved name must be a function that no variable can shadow.
+            return v.depth >= 0 || (funcs.containsKey(v.name) && !funcs.boundNames.contains(v.name));
+        }
+        if (e instanceof AssignExpr a) return a.depth >= 0 && expr(a.value);
+        if (e instanceof CallExpr c) return call(c) && all(c.args);
+        if (e instanceof BinExpr b) return expr(b.l) && expr(b.r);
+        if (e instanceof UnaryExpr u) return expr(u.expr);
+        if (e instanceof ListExpr l) return all(l.items);
+        if (e instanceof DictExpr d) {
+            for (DictKey k : d.keys) {
+                if (!k.literal) return false;
+            }
+            return all(d.values);
+        }
+        if (e instanceof IndexExpr ix) return expr(ix.target) && expr(ix.index);
+        if (e instanceof GetFieldExpr g) return expr(g.target);
+        if (e instanceof MethodCallExpr m) return expr(m.target) && all(m.args);
+        return false;
+    }
+
+    private boolean all(List<Expr> exprs) {
+        for (Expr e : exprs) {
+            if (!expr(e)) return false;
+        }
+        return true;
+    }
+
+    private boolean call(CallExpr c) {
+        if (c.version != funcs.version) c.link(funcs);
+        if (c.depth >= 0 || c.shadowable) return false;
+        if (c.builtin != null) return PURE_BUILTINS.contains(c.name);
+        return c.function == null || function(c.function);
+    }
+}
@@ -0,0 +1,171 @@
+package analyze;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Static pass that gives every `var`, parameter and loop variable a (depth, slot)
+ * coordinate in the Env frames of its function. Names that are not declared
+ * lexically before their use (caller variables, implicit assignments, eval tails)
+ * stay unresolved and are looked up by name at runtime.
+ */
+public class Resolver {
+    private final List<Scope> scopes = new ArrayList<>();
+
+    static void resolve(Map<String, Function> funcs) {
+        Resolver r = new Resolver();
+        for (Function f : funcs.values()) {
+            r.function(f);
+        }
+    }
+
+    static void resolve(Expr e) {
+        new Resolver().expr(e);
+    }
+
+    void function(Function f) {
+        scopes.clear();
+        Scope scope = new Scope();
+        int[] paramSlots = new int[f.params.size()];
+        for (int i = 0; i < paramSlots.length; i++) {
+            paramSlots[i] = scope.declare(f.params.get(i));
+        }
+        scopes.add(scope);
+        for (Stmt s : f.body) stmt(s);
+        scopes.clear();
+        f.scope = scope;
+        f.paramSlots = paramSlots;
+    }
+
+    private Scope block(List<Stmt> stmts) {
+        Scope scope = new Scope();
+        if (bindsNothing(stmts)) {
+            scope.elided = true;
+            for (Stmt s : stmts) stmt(s);
+            return scope;
+        }
+        scopes.add(scope);
+        for (Stmt s : stmts) stmt(s);
+        scopes.remove(scopes.size() - 1);
+        return scope;
+    }
+
+    private void stmt(Stmt s) {
+        if (s instanceof VarStmt vs) {
+            expr(vs.expr);
+            vs.slot = top().declare(vs.name);
+        } else if (s instanceof ExprStmt es) {
+            expr(es.expr);
+        } else if (s instanceof ReturnStmt rs) {
+            expr(rs.expr);
+        } else if (s instanceof IfStmt is) {
+            expr(is.cond);
+            is.thenScope = block(is.thenBranch);
+            if (is.elseBranch != null) {
+                is.elseScope = block(is.elseBranch);
+            }
+        } else if (s instanceof ForStmt fs) {
+            Scope loopScope = new Scope();
+            scopes.add(loopScope);
+            if (fs.init instanceof ExprStmt es && es.expr instanceof AssignExpr ae) {
+                // A bare `i = ...` initializer always binds a fresh loop variable.
+                expr(ae.value);
+                fs.initSlot = loopScope.declare(ae.name);
+            } else if (fs.init != null) {
+                stmt(fs.init);
+            }
+            if (fs.cond != null) expr(fs.cond);
+            if (fs.incr != null) expr(fs.incr);
+            fs.bodyScope = block(fs.body);
+            scopes.remove(scopes.size() - 1);
+            fs.loopScope = loopScope;
+        }
+    }
+
+    private void expr(Expr e) {
+        if (e instanceof VarExpr v) {
+            int[] at = lookup(v.name);
+            v.depth = at[0];
+            v.slot = at[1];
+        } else if (e instanceof AssignExpr a) {
+            expr(a.value);
+            int[] at = lookup(a.name);
+            a.depth = at[0];
+            a.slot = at[1];
+        } else if (e instanceof CallExpr c) {
+            int[] at = lookup(c.name);
+            c.depth = at[0];
+            c.slot = at[1];
+            for (Expr arg : c.args) expr(arg);
+        } else if (e instanceof BinExpr b) {
+            expr(b.l);
+            expr(b.r);
+        } else if (e instanceof UnaryExpr u) {
+            expr(u.expr);
+        } else if (e instanceof ListExpr l) {
+            for (Expr item : l.items) expr(item);
+        } else if (e instanceof DictExpr d) {
+            for (Expr value : d.values) expr(value);
+        } else if (e instanceof IndexExpr ix) {
+            expr(ix.target);
+            expr(ix.index);
+        } else if (e instanceof SetIndexExpr sx) {
+            expr(sx.target);
+            expr(sx.value);
+            expr(sx.index);
+        } else if (e instanceof GetFieldExpr g) {
+            expr(g.target);
+        } else if (e instanceof MethodCallExpr m) {
+            expr(m.target);
+            for (Expr arg : m.args) expr(arg);
+        }
+    }
+
+    // True when running stmts in the enclosing Env binds nothing there: no declarations,
+    // no assignment outside nested blocks that can miss a resolved variable (it would
+    // define the name in the innermost Env) and no eval call.
+    private boolean bindsNothing(List<Stmt> stmts) {
+        for (Stmt s : stmts) {
+            if (s instanceof VarStmt) return false;
+            if (s instanceof ExprStmt es && !bindsNothing(es.expr)) return false;
+            if (s instanceof ReturnStmt rs && !bindsNothing(rs.expr)) return false;
+            if (s instanceof IfStmt is && !bindsNothing(is.cond)) return false;
+        }
+        return true;
+    }
+
+    private boolean bindsNothing(Expr e) {
+        if (e instanceof AssignExpr a) return lookup(a.name)[0] >= 0 && bindsNothing(a.value);
+        if (e instanceof CallExpr c) {
+            return !c.name.equals("eval") && c.args.stream().allMatch(this::bindsNothing);
+        }
+        if (e instanceof BinExpr b) return bindsNothing(b.l) && bindsNothing(b.r);
+        if (e instanceof UnaryExpr u) return bindsNothing(u.expr);
+        if (e instanceof ListExpr l) return l.items.stream().allMatch(this::bindsNothing);
+        if (e instanceof DictExpr d) return d.values.stream().allMatch(this::bindsNothing);
+        if (e instanceof IndexExpr ix) return bindsNothing(ix.target) && bindsNothing(ix.index);
+        if (e instanceof SetIndexExpr sx) {
+            return bindsNothing(sx.target) && bindsNothing(sx.index) && bindsNothing(sx.value);
+        }
+        if (e instanceof GetFieldExpr g) return bindsNothing(g.target);
+        if (e instanceof MethodCallExpr m) {
+            return bindsNothing(m.target) && m.args.stream().allMatch(this::bindsNothing);
+        }
+        return true;
+    }
+
+    private int[] lookup(String name) {
+        for (int i = scopes.size() - 1; i >= 0; i--) {
+            int slot = scopes.get(i).indexOf(name);
+            if (slot >= 0) {
+                return new int[]{scopes.size() - 1 - i, slot};
+            }
+        }
+        return new int[]{-1, -1};
+    }
+
+    private Scope top() {
+        return scopes.get(scopes.size() - 1);
+    }
+}
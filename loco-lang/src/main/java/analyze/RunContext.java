@@ -0,0 +1,34 @@
+package analyze;
+
+import java.io.BufferedReader;
+import java.io.PrintStream;
+
+/**
+ * What one run of a program has to itself: its functions, its settings and streams,
+ * its eval cache and the tasks it spawned. Every Env of the run, including those of
+ * pool workers and spawned tasks, holds the same RunContext.
+ */
+public class RunContext {
+    private static final long EVAL_CACHE_CHARS = 1 << 20;
+
+    final FunctionTable funcs;
+    // Applied to code that eval() adds at runtime.
+    Optimizer optimizer = new Optimizer();
+    // Cross-check every intrinsic call against the script body.
+    boolean checkIntrinsics;
+    // Script errors also record the Java stack trace (--debug).
+    boolean debug;
+    // Programs eval() has already parsed and linked into funcs, by source text.
+    // Weighed by source length, which tracks the size of the AST well enough.
+    final LruCache<String, Parser.ScriptResult> evalCache = new LruCache<>(EVAL_CACHE_CHARS, (source, r) -> source.length());
+    // Tasks spawned by the program.
+    final Tasks tasks = new Tasks();
+    // This run's own streams: println writes to out and readln reads from in.
+    PrintStream out;
+    PrintStream err;
+    BufferedReader in;
+
+    RunContext(FunctionTable funcs) {
+        this.funcs = funcs;
+    }
+}
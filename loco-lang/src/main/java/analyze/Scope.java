@@ -0,0 +1,29 @@
+package analyze;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class Scope {
+    static final Scope EMPTY = new Scope();
+
+    // Slot names in declaration order; a name's index is its slot in the Env frame.
+    final List<String> names = new ArrayList<>();
+    // Set by the Resolver for a block that binds nothing of its own; it runs in the
+    // enclosing Env and takes no depth level.
+    boolean elided;
+
+    int declare(String name) {
+        int slot = names.indexOf(name);
+        if (slot >= 0) return slot;
+        names.add(name);
+        return names.size() - 1;
+    }
+
+    int indexOf(String name) {
+        return names.indexOf(name);
+    }
+
+    int size() {
+        return names.size();
+    }
+}
@@ -1,13 +1,40 @@
 package analyze;
 
+import java.util.ArrayList;
+import java.util.List;
+
 public class ScriptFrame {
     final String name;
     final int line;
     final int col;
+    // Frame of the call this one was made from; frames are never changed once pushed,
+    // so any frame is also a snapshot of the whole stack below it.
+    final ScriptFrame caller;
 
-    ScriptFrame(String name, int line, int col) {
+    ScriptFrame(String name, int line, int col, ScriptFrame caller) {
         this.name = name;
         this.line = line;
         this.col = col;
+        this.caller = caller;
+    }
+
+    // Frames from this one down to the outermost call.
+    List<ScriptFrame> toList() {
+        List<ScriptFrame> out = new ArrayList<>();
+        for (ScriptFrame f = this; f != null; f = f.caller) out.add(f);
+        return out;
+    }
+}
+
+// Script call stack of one execution, shared by all of its Envs.
+final class CallStack {
+    ScriptFrame top;
+
+    void push(String name, int line, int col) {
+        top = new ScriptFrame(name, line, col, top);
+    }
+
+    void pop() {
+        top = top.caller;
     }
 }
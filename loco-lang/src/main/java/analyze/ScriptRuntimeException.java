@@ -5,12 +5,33 @@ import java.util.List;
 public class ScriptRuntimeException extends RuntimeException {
     final int line;
     final int col;
-    final List<ScriptFrame> stack;
+    // Innermost script frame when the error was raised, or null outside any call.
+    private final ScriptFrame top;
+    private List<ScriptFrame> stack;
 
-    ScriptRuntimeException(String message, int line, int col, List<ScriptFrame> stack) {
-        super(message);
+    // Raised outside any script call, e.g. by the lexer or parser.
+    ScriptRuntimeException(String message, int line, int col) {
+        this(message, line, col, null, false);
+    }
+
+    // Raised while env's run executes. The Java stack trace is recorded only if the run
+    // is a debug one; otherwise errors stay cheap enough for scripts that fail often.
+    ScriptRuntimeException(String message, int line, int col, Env env) {
+        this(message, line, col, env.stackSnapshot(), env.run.debug);
+    }
+
+    ScriptRuntimeException(String message, int line, int col, ScriptFrame top, boolean trace) {
+        super(message, null, false, trace);
         this.line = line;
         this.col = col;
-        this.stack = stack;
+        this.top = top;
+    }
+
+    // Script stack, innermost call first; built only when someone asks for it.
+    List<ScriptFrame> stack() {
+        if (stack == null) {
+            stack = top == null ? List.of() : top.toList();
+        }
+        return stack;
     }
 }
@@ -5,7 +5,11 @@ public class Statements {
 
 
 interface Stmt {
-    void exec(Env env);
+    // Completion signal for statements that finish without a `return`;
+    // any other result of exec is the value being returned.
+    Object NORMAL = new Object();
+
+    Object exec(Env env);
 }
 
 class VarStmt implements Stmt {
@@ -13,6 +17,7 @@ class VarStmt implements Stmt {
     Expr expr;
     int line;
     int col;
+    int slot = -1;
 
     VarStmt(String n, Expr e, int line, int col) {
         name = n;
@@ -21,8 +26,9 @@ class VarStmt implements Stmt {
         this.col = col;
     }
 
-    public void exec(Env env) {
-        env.define(name, expr.eval(env), line, col);
+    public Object exec(Env env) {
+        env.defineAt(slot, expr.eval(env), name, line, col);
+        return NORMAL;
     }
 }
 
@@ -33,8 +39,9 @@ class ExprStmt implements Stmt {
         expr = e;
     }
 
-    public void exec(Env env) {
+    public Object exec(Env env) {
         expr.eval(env);
+        return NORMAL;
     }
 }
 
@@ -45,8 +52,10 @@ class ReturnStmt implements Stmt {
         expr = e;
     }
 
-    public void exec(Env env) {
-        throw new ReturnValue(expr.eval(env));
+    public Object exec(Env env) {
+        // A returned call to a script function is left to the caller's Env.call to make.
+        if (expr instanceof CallExpr call) return call.call(env, true);
+        return expr.eval(env);
     }
 }
 
@@ -54,6 +63,8 @@ class IfStmt implements Stmt {
     Expr cond;
     java.util.List<Stmt> thenBranch;
     java.util.List<Stmt> elseBranch;
+    Scope thenScope = Scope.EMPTY;
+    Scope elseScope = Scope.EMPTY;
 
     IfStmt(Expr cond, java.util.List<Stmt> thenBranch, java.util.List<Stmt> elseBranch) {
         this.cond = cond;
@@ -61,16 +72,23 @@ class IfStmt implements Stmt {
         this.elseBranch = elseBranch;
     }
 
-    public void exec(Env env) {
-        if (Env.isTruthy(cond.eval(env))) {
-            Env blockEnv = new Env(env.funcs, env);
-            for (Stmt s : thenBranch) s.exec(blockEnv);
-            return;
+    public Object exec(Env env) {
+        if (cond.evalBoolean(env)) {
+            Env blockEnv = env.block(thenScope);
+            for (Stmt s : thenBranch) {
+                Object r = s.exec(blockEnv);
+                if (r != NORMAL) return r;
+            }
+            return NORMAL;
         }
         if (elseBranch != null) {
-            Env blockEnv = new Env(env.funcs, env);
-            for (Stmt s : elseBranch) s.exec(blockEnv);
+            Env blockEnv = env.block(elseScope);
+            for (Stmt s : elseBranch) {
+                Object r = s.exec(blockEnv);
+                if (r != NORMAL) return r;
+            }
         }
+        return NORMAL;
     }
 }
 
@@ -79,6 +97,9 @@ class ForStmt implements Stmt {
     Expr cond;
     Expr incr;
     java.util.List<Stmt> body;
+    Scope loopScope = Scope.EMPTY;
+    Scope bodyScope = Scope.EMPTY;
+    int initSlot = -1;
 
     ForStmt(Stmt init, Expr cond, Expr incr, java.util.List<Stmt> body) {
         this.init = init;
@@ -87,35 +108,26 @@ class ForStmt implements Stmt {
         this.body = body;
     }
 
-    public void exec(Env env) {
-        Env loopEnv = new Env(env.funcs, env);
+    public Object exec(Env env) {
+        Env loopEnv = new Env(env.run, env, loopScope);
         if (init != null) {
             if (init instanceof ExprStmt es && es.expr instanceof AssignExpr ae) {
-                if (!loopEnv.vars.containsKey(ae.name)) {
-                    Object v = ae.value.eval(loopEnv);
-                    loopEnv.define(ae.name, v, ae.line, ae.col);
-                } else {
-                    init.exec(loopEnv);
-                }
+                Object v = ae.value.eval(loopEnv);
+                loopEnv.defineAt(initSlot, v, ae.name, ae.line, ae.col);
             } else {
                 init.exec(loopEnv);
             }
         }
-        while (cond == null || Env.isTruthy(cond.eval(loopEnv))) {
-            Env bodyEnv = new Env(loopEnv.funcs, loopEnv);
-            for (Stmt s : body) s.exec(bodyEnv);
+        // One body Env serves every iteration, unbound again before each.
+        Env bodyEnv = loopEnv.block(bodyScope);
+        while (cond == null || cond.evalBoolean(loopEnv)) {
+            if (bodyEnv != loopEnv) bodyEnv.reset();
+            for (Stmt s : body) {
+                Object r = s.exec(bodyEnv);
+                if (r != NORMAL) return r;
+            }
             if (incr != null) incr.eval(loopEnv);
         }
-    }
-}
-
-
-
-class ReturnValue extends ScriptRuntimeException {
-    Object value;
-
-    ReturnValue(Object v) {
-        super("return", 0, 0, java.util.List.of());
-        value = v;
+        return NORMAL;
     }
 }
@@ -0,0 +1,325 @@
+package analyze;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Script tasks and channels: spawn(fn, args...), await(task), channel(capacity),
+ * send(ch, v), receive(ch) and close(ch). One Tasks instance belongs to a program run.
+ *
+ * A task calls fn on its own thread, in a fresh root Env with its own script stack
+ * that starts at the spawning call, so tasks share no variables. Lists and structures
+ * are copied whenever they cross between tasks (spawn arguments, sent values, awaited
+ * results), so no two tasks ever see the same list or structure; task and channel
+ * handles are the only shared values. eval() is refused while tasks run, because it
+ * changes the function table every task calls through.
+ *
+ * When main returns, the run waits for its tasks. Tasks blocked in await, send or
+ * receive at that point, or later, are cancelled; a task that failed and was never
+ * awaited then fails the run.
+ */
+public class Tasks {
+    // One virtual thread per task: tasks mostly block on channels and other tasks, and
+    // a blocked virtual thread holds no platform thread.
+    private static final ExecutorService POOL = Executors.newVirtualThreadPerTaskExecutor();
+
+    private final List<Task> spawned = new ArrayList<>();
+    private final AtomicInteger running = new AtomicInteger();
+    private volatile boolean finishing;
+
+    static final class Task {
+        private final CountDownLatch done = new CountDownLatch(1);
+        // Thread running the task; the lock keeps a late cancel from interrupting it
+        // after the task ended.
+        private Thread thread;
+        private volatile boolean cancelled;
+        private volatile boolean awaited;
+        private Object result;
+        private RuntimeException error;
+
+        private synchronized void start() {
+            thread = Thread.currentThread();
+            if (cancelled) thread.interrupt();
+        }
+
+        private synchronized void end() {
+            thread = null;
+            Thread.interrupted();
+        }
+
+        private synchronized void cancel() {
+            cancelled = true;
+            if (thread != null) thread.interrupt();
+        }
+
+        @Override
+        public String toString() {
+            return "<task>";
+        }
+    }
+
+    // Waits on a lock rather than a monitor, which would pin a virtual thread to its carrier.
+    static final class Channel {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition changed = lock.newCondition();
+        private final Object[] buffer;
+        private int head;
+        private int count;
+        private boolean closed;
+
+        Channel(int capacity) {
+            buffer = new Object[capacity];
+        }
+
+        boolean send(Object v) throws InterruptedException {
+            lock.lock();
+            try {
+                while (count == buffer.length && !closed) changed.await();
+                if (closed) return false;
+                buffer[(head + count) % buffer.length] = v;
+                count++;
+                changed.signalAll();
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // Next value, or null once the channel is closed and drained.
+        Object receive() throws InterruptedException {
+            lock.lock();
+            try {
+                while (count == 0 && !closed) changed.await();
+                if (count == 0) return null;
+                Object v = buffer[head];
+                buffer[head] = null;
+                head = (head + 1) % buffer.length;
+                count--;
+                changed.signalAll();
+                return v;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void close() {
+            lock.lock();
+            try {
+                closed = true;
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "<channel>";
+        }
+    }
+
+    int running() {
+        return running.get();
+    }
+
+    // Waits for every task; see the class comment. Rethrows the first failure of a task
+    // nobody awaited when report is set.
+    void finish(boolean report) {
+        finishing = true;
+        List<Task> tasks = new ArrayList<>();
+        boolean interrupted = false;
+        // Tasks may still spawn tasks (born cancelled) while we wait, so go until none are new.
+        while (true) {
+            List<Task> fresh;
+            synchronized (spawned) {
+                fresh = new ArrayList<>(spawned.subList(tasks.size(), spawned.size()));
+            }
+            if (fresh.isEmpty()) break;
+            for (Task t : fresh) {
+                if (t.done.getCount() > 0) t.cancel();
+            }
+            for (Task t : fresh) {
+                while (true) {
+                    try {
+                        t.done.await();
+                        break;
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            }
+            tasks.addAll(fresh);
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+        if (!report) return;
+        for (Task t : tasks) {
+            if (t.error != null && !t.awaited && !(t.error instanceof Cancelled)) throw t.error;
+        }
+    }
+
+    static Object spawn(Env env, List<Expr> args, int line, int col) {
+        if (args.isEmpty()) {
+            throw new ScriptRuntimeException("spawn() expects a function and its arguments", line, col, env);
+        }
+        Object fnVal = args.get(0).eval(env);
+        FunctionRef fn;
+        if (fnVal instanceof FunctionRef fr) {
+            fn = fr;
+        } else if (fnVal instanceof CharSequence s) {
+            fn = new FunctionRef(s.toString(), env.funcs);
+        } else {
+            throw new ScriptRuntimeException("spawn() expects function reference or name", line, col, env);
+        }
+        List<Expr> callArgs = new ArrayList<>(args.size() - 1);
+        for (int i = 1; i < args.size(); i++) {
+            callArgs.add(new ConstExpr(copy(args.get(i).eval(env), env, line, col)));
+        }
+        Tasks tasks = env.run.tasks;
+        Task task = new Task();
+        synchronized (tasks.spawned) {
+            tasks.spawned.add(task);
+        }
+        tasks.running.incrementAndGet();
+        if (tasks.finishing) task.cancel();
+        RunContext run = env.run;
+        ScriptFrame spawner = env.stack.top;
+        POOL.execute(() -> {
+            task.start();
+            try {
+                Env root = new Env(run, null);
+                root.stack.top = spawner;
+                task.result = ScriptString.flat(fn.call(root, callArgs, line, col));
+            } catch (RuntimeException e) {
+                task.error = e;
+            } catch (StackOverflowError e) {
+                task.error = new ScriptRuntimeException("Stack overflow", line, col, spawner, run.debug);
+            } finally {
+                task.end();
+                tasks.running.decrementAndGet();
+                task.done.countDown();
+            }
+        });
+        return task;
+    }
+
+    static Object await(Env env, List<Expr> args, int line, int col) {
+        if (args.size() != 1) {
+            throw new ScriptRuntimeException("await() expects 1 argument", line, col, env);
+        }
+        if (!(args.get(0).eval(env) instanceof Task task)) {
+            throw new ScriptRuntimeException("await() expects a task", line, col, env);
+        }
+        try {
+            task.done.await();
+        } catch (InterruptedException e) {
+            throw cancelled(env, line, col);
+        }
+        task.awaited = true;
+        if (task.error != null) throw task.error;
+        return copy(task.result, env, line, col);
+    }
+
+    static Object channel(Env env, List<Expr> args, int line, int col) {
+        if (args.size() != 1) {
+            throw new ScriptRuntimeException("channel() expects 1 argument", line, col, env);
+        }
+        Object v = args.get(0).eval(env);
+        if (!(v instanceof Double d) || d < 1 || d != Math.floor(d) || d > Integer.MAX_VALUE) {
+            throw new ScriptRuntimeException("channel() expects a positive whole capacity", line, col, env);
+        }
+        return new Channel(d.intValue());
+    }
+
+    static Object send(Env env, List<Expr> args, int line, int col) {
+        if (args.size() != 2) {
+            throw new ScriptRuntimeException("send() expects 2 arguments", line, col, env);
+        }
+        Channel ch = channelArg("send", args.get(0).eval(env), env, line, col);
+        Object v = copy(args.get(1).eval(env), env, line, col);
+        try {
+            if (!ch.send(v)) {
+                throw new ScriptRuntimeException("send() on a closed channel", line, col, env);
+            }
+        } catch (InterruptedException e) {
+            throw cancelled(env, line, col);
+        }
+        return null;
+    }
+
+    static Object receive(Env env, List<Expr> args, int line, int col) {
+        if (args.size() != 1) {
+            throw new ScriptRuntimeException("receive() expects 1 argument", line, col, env);
+        }
+        Channel ch = channelArg("receive", args.get(0).eval(env), env, line, col);
+        try {
+            return ch.receive();
+        } catch (InterruptedException e) {
+            throw cancelled(env, line, col);
+        }
+    }
+
+    static Object close(Env env, List<Expr> args, int line, int col) {
+        if (args.size() != 1) {
+            throw new ScriptRuntimeException("close() expects 1 argument", line, col, env);
+        }
+        channelArg("close", args.get(0).eval(env), env, line, col).close();
+        return null;
+    }
+
+    private static Channel channelArg(String name, Object v, Env env, int line, int col) {
+        if (v instanceof Channel ch) return ch;
+        throw new ScriptRuntimeException(name + "() expects a channel", line, col, env);
+    }
+
+    // Thrown in a task that blocks after it was cancelled.
+    private static final class Cancelled extends ScriptRuntimeException {
+        Cancelled(int line, int col, Env env) {
+            super("Task cancelled", line, col, env);
+        }
+    }
+
+    private static ScriptRuntimeException cancelled(Env env, int line, int col) {
+        return new Cancelled(line, col, env);
+    }
+
+    // Copy of v that shares no list or structure with it. Lists and structures that
+    // contain themselves cannot be copied.
+    static Object copy(Object v, Env env, int line, int col) {
+        return copy(v, new IdentityHashMap<>(), env, line, col);
+    }
+
+    private static Object copy(Object v, IdentityHashMap<Object, Object> copies, Env env, int line, int col) {
+        if (v instanceof ScriptString s) return s.toString();
+        if (!(v instanceof List<?>) && !(v instanceof Map<?, ?>)) return v;
+        if (copies.containsKey(v)) {
+            Object done = copies.get(v);
+            if (done == null) {
+                throw new ScriptRuntimeException("Cannot copy a value that contains itself", line, col, env);
+            }
+            return done;
+        }
+        copies.put(v, null);
+        Object out;
+        if (v instanceof List<?> list) {
+            Object[] items = list.toArray();
+            for (int i = 0; i < items.length; i++) items[i] = copy(items[i], copies, env, line, col);
+            out = ScriptList.of(items);
+        } else {
+            ScriptMap map = new ScriptMap();
+            for (Map.Entry<?, ?> e : ((Map<?, ?>) v).entrySet()) {
+                map.put((String) e.getKey(), copy(e.getValue(), copies, env, line, col));
+            }
+            out = map;
+        }
+        copies.put(v, out);
+        return out;
+    }
+}
@@ -1,7 +1,9 @@
 package analyze;
 
+// Always rethrown as a ScriptRuntimeException at the failing node, so it carries no
+// stack trace of its own.
 public class TypeErrorException extends RuntimeException {
     TypeErrorException(String message) {
-        super(message);
+        super(message, null, false, false);
     }
 }
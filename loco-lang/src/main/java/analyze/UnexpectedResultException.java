@@ -0,0 +1,12 @@
+package analyze;
+
+// Thrown by a specialized eval path when a value does not have the expected type.
+// It is a control-flow signal, so it carries no stack trace.
+public class UnexpectedResultException extends Exception {
+    final Object result;
+
+    UnexpectedResultException(Object result) {
+        super(null, null, false, false);
+        this.result = result;
+    }
+}
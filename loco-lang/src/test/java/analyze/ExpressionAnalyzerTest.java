@@ -0,0 +1,264 @@
+package analyze;
+
+import analyze.ExpressionAnalyzer.ExecutionOptions;
+import analyze.ExpressionAnalyzer.ExecutionResult;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs whole programs through execute() and checks what a caller gets back.
+ */
+class ExpressionAnalyzerTest {
+    private static ExecutionResult run(String main, ExecutionOptions options) {
+        return ExpressionAnalyzer.execute(List.of(new SourceFile("main.ll", main)), options);
+    }
+
+    private static ExecutionResult run(String main) {
+        return run(main, new ExecutionOptions());
+    }
+
+    @Test
+    void printsToItsOwnOutput() {
+        ExecutionResult r = run("fun main() { println(\"a\" + \"b\") }");
+        assertNull(r.error);
+        assertEquals("ab", r.stdout.strip());
+    }
+
+    @Test
+    void deepRecursionIsAScriptError() {
+        ExecutionResult r = run("fun main() { down(10000000) }\nfun down(n) { return 1 + down(n + 1) }");
+        assertInstanceOf(ScriptRuntimeException.class, r.error);
+        assertTrue(r.stderr.contains("Stack overflow"), r.stderr);
+    }
+
+    @Test
+    void tailCallsDoNotOverflow() {
+        ExecutionResult r = run("""
+                fun main() { println(count(0, 1000000)) }
+                fun count(i, n) {
+                    if (i == n) { return i }
+                    return count(i + 1, n)
+                }
+                """);
+        assertNull(r.error);
+        assertEquals("1000000.0", r.stdout.strip());
+    }
+
+    @Test
+    void largerStackAllowsDeeperRecursion() {
+        String main = """
+                fun main() { println(depth(20000)) }
+                fun depth(n) {
+                    if (n == 0) { return 0 }
+                    return 1 + depth(n - 1)
+                }
+                """;
+        assertInstanceOf(ScriptRuntimeException.class, run(main).error);
+        ExecutionResult r = run(main, new ExecutionOptions().stackSize(256L << 20));
+        assertNull(r.error);
+        assertEquals("20000.0", r.stdout.strip());
+    }
+
+    @Test
+    void deepNestingOutsideAnyCallIsAScriptError() {
+        String nested = "(".repeat(200000) + "1" + ")".repeat(200000);
+        ExecutionResult r = run("fun main() { println(" + nested + ") }");
+        assertInstanceOf(ScriptRuntimeException.class, r.error);
+        assertTrue(r.stderr.contains("Stack overflow"), r.stderr);
+    }
+
+    @Test
+    void onlyDebugRunsRecordJavaStackTraces() {
+        String main = "fun main() { println(missing) }";
+        ExecutionResult plain = run(main);
+        ExecutionResult debug = run(main, new ExecutionOptions().debug(true));
+        assertInstanceOf(ScriptRuntimeException.class, plain.error);
+        assertInstanceOf(ScriptRuntimeException.class, debug.error);
+        assertEquals(0, plain.error.getStackTrace().length);
+        assertTrue(debug.error.getStackTrace().length > 0);
+    }
+
+    @Test
+    void scriptFunctionsOverrideParallelBuiltins() {
+        ExecutionResult own = run("fun main() { println(filter([1, 2], 0)) }\nfun filter(a, b) { return \"own\" }");
+        assertNull(own.error);
+        assertEquals("own", own.stdout.strip());
+        ExecutionResult builtin = run("fun main() { println(size(filter([1, 2, 3], isOdd))) }\nfun isOdd(n) { return n % 2 == 1 }");
+        assertNull(builtin.error);
+        assertEquals("2.0", builtin.stdout.strip());
+    }
+
+    @Test
+    void reduceFoldsLongListsInOrder() {
+        ExecutionResult r = run("""
+                fun main() {
+                    var ones = []
+                    for (i = 0; i < 3000; i = i + 1) {
+                        ones = ones + [1]
+                    }
+                    println(reduce(ones, count, 0))
+                    println(reduce(ones, subtract, 0))
+                }
+                fun count(acc, x) {
+                    return acc + 1
+                }
+                fun subtract(acc, x) {
+                    return acc - x
+                }
+                """);
+        assertNull(r.error, r.stderr);
+        assertEquals(List.of("3000.0", "-3000.0"), r.stdout.lines().toList());
+    }
+
+    @Test
+    void appendThenSetKeepsEarlierListsUnchanged() {
+        ExecutionResult r = run("""
+                fun main() {
+                    var xs = [0]
+                    var old = xs
+                    for (i = 1; i < 3000; i = i + 1) {
+                        if (i == 1000) {
+                            old = xs
+                        }
+                        xs = xs + [i]
+                        xs[0] = xs[0] + 1
+                        xs[i] = xs[i] * 2
+                    }
+                    println(xs[0])
+                    println(xs[2999])
+                    println(size(old))
+                    println(old[0])
+                    println(old[999])
+                    old[1] = "x"
+                    println(xs[1])
+                }
+                """);
+        assertNull(r.error, r.stderr);
+        assertEquals(List.of("2999.0", "5998.0", "1000.0", "999.0", "1998.0", "2.0"), r.stdout.lines().toList());
+    }
+
+    @Test
+    void assignmentsBindInTheInnermostBlock() {
+        ExecutionResult r = run("""
+                fun main() {
+                    var total = 0
+                    for (i = 0; i < 4; i = i + 1) {
+                        total = total + i
+                        if (i % 2 == 1) {
+                            fresh = i
+                            println(fresh)
+                        }
+                    }
+                    println(total)
+                    for (i = 0; i < 2; i = i + 1) {
+                        var v = i * 10
+                        println(v)
+                    }
+                    if (true) {
+                        eval("e = 5")
+                        println(e)
+                    }
+                    println(fresh)
+                }
+                """);
+        assertEquals(List.of("1.0", "3.0", "6.0", "0.0", "10.0", "5.0"), r.stdout.lines().toList());
+        assertInstanceOf(ScriptRuntimeException.class, r.error);
+        assertTrue(r.stderr.contains("Undefined variable fresh"), r.stderr);
+    }
+
+    @Test
+    void calleesSeeTheCallersVariables() {
+        ExecutionResult r = run("""
+                fun main() {
+                    var x = 1
+                    bump()
+                    println(x)
+                    var size = double
+                    println(callSize(4))
+                }
+                fun bump() {
+                    x = x + 10
+                }
+                fun callSize(v) {
+                    return size(v)
+                }
+                fun double(v) {
+                    return v * 2
+                }
+                """);
+        assertNull(r.error, r.stderr);
+        assertEquals(List.of("11.0", "8.0"), r.stdout.lines().toList());
+    }
+
+    @Test
+    void evalSeesFunctionsItRedefined() {
+        ExecutionResult r = run("""
+                fun main() {
+                    var total = 0
+                    for (i = 0; i < 100; i = i + 1) {
+                        total = total + eval("sq(3)")
+                    }
+                    println(total)
+                    eval("fun sq(x) { return x + x }")
+                    println(eval("sq(3)"))
+                    for (j = 0; j < 2; j = j + 1) {
+                        println(eval("j * 10"))
+                    }
+                }
+                fun sq(x) {
+                    return x * x
+                }
+                """, new ExecutionOptions().debug(true));
+        assertNull(r.error, r.stderr);
+        assertEquals(List.of("900.0", "6.0", "0.0", "10.0"), r.stdout.lines().toList());
+        assertTrue(r.stderr.contains("eval cache:"), r.stderr);
+    }
+
+    @Test
+    void tasksAndChannelsPassValues() {
+        ExecutionResult r = run("""
+                fun main() {
+                    var ch = channel(1)
+                    var t = spawn(produce, ch, 3)
+                    var sum = 0
+                    for (v = receive(ch); v != null; v = receive(ch)) {
+                        sum = sum + v
+                    }
+                    println(await(t))
+                    println(sum)
+                    println(toString(typeOf(t)) == "TASK")
+                }
+                fun produce(ch, n) {
+                    for (i = 1; i <= n; i = i + 1) {
+                        send(ch, i)
+                    }
+                    close(ch)
+                    return "done"
+                }
+                """);
+        assertNull(r.error, r.stderr);
+        assertEquals(List.of("done", "6.0", "true"), r.stdout.lines().toList());
+    }
+
+    @Test
+    void taskNamesStayFreeForScripts() {
+        ExecutionResult r = run("""
+                fun main() {
+                    var TASK = 1
+                    var CHANNEL = 2
+                    println(send(TASK, CHANNEL))
+                }
+                fun send(a, b) {
+                    return a + b
+                }
+                """);
+        assertNull(r.error, r.stderr);
+        assertEquals("3.0", r.stdout.strip());
+    }
+}
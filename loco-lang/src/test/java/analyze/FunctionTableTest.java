@@ -0,0 +1,40 @@
+package analyze;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+/**
+ * Checks when the table version changes, which decides when call sites rebind.
+ */
+class FunctionTableTest {
+    private static Function function() {
+        return new Function(List.of(), List.of());
+    }
+
+    @Test
+    void puttingBackTheSameFunctionsKeepsTheVersion() {
+        Function f = function();
+        FunctionTable table = new FunctionTable(Map.of("f", f));
+        int version = table.version;
+        table.putAll(Map.of());
+        table.putAll(Map.of("f", f));
+        table.put("f", f);
+        assertEquals(version, table.version);
+    }
+
+    @Test
+    void addingOrRebindingANameBumpsTheVersion() {
+        FunctionTable table = new FunctionTable(Map.of("f", function()));
+        int version = table.version;
+        table.putAll(Map.of("g", function()));
+        assertNotEquals(version, table.version);
+        version = table.version;
+        table.putAll(Map.of("f", function()));
+        assertNotEquals(version, table.version);
+    }
+}
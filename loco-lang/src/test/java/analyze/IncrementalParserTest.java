@@ -0,0 +1,242 @@
+package analyze;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Edits files the way an editor does and expects every incremental parse to be the
+ * same as a full parse of the edited text: the same declarations, nodes and
+ * positions, or the same error.
+ */
+class IncrementalParserTest {
+    private static final String PROGRAM = """
+            import std.sort
+            import std.filter as keep
+
+            fun main() {
+                var xs = [3, 1, 2]
+                println(sort(xs))
+            }
+
+            fun twice(x) {
+                return x * 2
+            }
+            fun odd(x) { return x % 2 == 1 }
+            """;
+
+    private final Optimizer optimizer = new Optimizer();
+
+    @Test
+    void editThatJoinsAnImportToTheNextDeclarationFails() {
+        IncrementalParser parser = new IncrementalParser();
+        String edited = PROGRAM.replace("import std.sort\n", "import std.sort");
+        assertEquals(full(PROGRAM), incremental(parser, PROGRAM));
+        String expected = full(edited);
+        assertTrue(expected.startsWith("error"), expected);
+        assertEquals(expected, incremental(parser, edited));
+    }
+
+    @Test
+    void deletingWhitespaceBetweenDeclarationsMatchesFullParse() {
+        for (int i = 0; i < PROGRAM.length(); i++) {
+            if (!Character.isWhitespace(PROGRAM.charAt(i))) continue;
+            int end = i;
+            while (end < PROGRAM.length() && Character.isWhitespace(PROGRAM.charAt(end))) end++;
+            for (int from = i; from < end; from++) {
+                IncrementalParser parser = new IncrementalParser();
+                incremental(parser, PROGRAM);
+                String edited = PROGRAM.substring(0, from) + PROGRAM.substring(end);
+                assertEquals(full(edited), incremental(parser, edited), "deleted " + from + "-" + end);
+            }
+            i = end;
+        }
+    }
+
+    @Test
+    void randomEditsMatchFullParse() throws IOException {
+        List<String> files = List.of(PROGRAM, readStd());
+        String alphabet = "abfun(){}\n \"'/=+,x1;.";
+        Random random = new Random(42);
+        IncrementalParser parser = new IncrementalParser();
+        String current = files.get(0);
+        for (int i = 0; i < 2000; i++) {
+            if (random.nextInt(50) == 0) current = files.get(random.nextInt(files.size()));
+            String edited = current;
+            int pos = random.nextInt(edited.length() + 1);
+            switch (random.nextInt(3)) {
+                case 0 -> edited = edited.substring(0, pos) + edited.substring(Math.min(edited.length(), pos + 1 + random.nextInt(3)));
+                case 1 -> edited = edited.substring(0, pos) + alphabet.charAt(random.nextInt(alphabet.length())) + edited.substring(pos);
+                default -> edited = edited.substring(0, pos) + "\n" + edited.substring(pos);
+            }
+            String expected = full(edited);
+            assertEquals(expected, incremental(parser, edited), "edit " + i + " of\n" + current + "\nto\n" + edited);
+            if (!expected.startsWith("error")) current = edited;
+        }
+    }
+
+    @Test
+    void unchangedFilesComeFromTheSharedCache() {
+        String source = PROGRAM + "fun unchanged" + System.nanoTime() + "() { return 1 }\n";
+        IncrementalParser first = new IncrementalParser();
+        IncrementalParser.Parsed parsed = first.parse("main.ll", source, optimizer);
+        first.release(List.of(parsed));
+        IncrementalParser second = new IncrementalParser();
+        IncrementalParser.Parsed again = second.parse("main.ll", source, optimizer);
+        assertSame(parsed, again);
+        // Taken by a run, so a run that starts meanwhile parses its own copy.
+        IncrementalParser.Parsed meanwhile = new IncrementalParser().parse("main.ll", source, optimizer);
+        assertNotSame(again, meanwhile);
+    }
+
+    @Test
+    void onlyFullParsesAreShared() {
+        String source = PROGRAM + "fun edited" + System.nanoTime() + "() { return 1 }\n";
+        String edited = source.replace("return 1", "return 2");
+        IncrementalParser session = new IncrementalParser();
+        session.release(List.of(session.parse("main.ll", source, optimizer)));
+        IncrementalParser.Parsed spliced = session.parse("main.ll", edited, optimizer);
+        assertFalse(spliced.full);
+        session.release(List.of(spliced));
+
+        IncrementalParser.Parsed other = new IncrementalParser().parse("main.ll", edited, optimizer);
+        assertTrue(other.full);
+        assertNotSame(spliced, other);
+        // The session that made it keeps diffing against its own parse.
+        assertSame(spliced, session.parse("main.ll", edited, optimizer));
+    }
+
+    @Test
+    void parsesWithOtherPassesAreNotDiffedAgainst() {
+        String source = PROGRAM + "fun passes" + System.nanoTime() + "() { return 1 + 2 }\n";
+        String edited = source.replace("return 1 + 2", "return 1 + 3");
+        IncrementalParser session = new IncrementalParser();
+        session.release(List.of(session.parse("main.ll", source, optimizer)));
+        IncrementalParser.Parsed unoptimized = session.parse("main.ll", edited, Optimizer.none());
+        assertTrue(unoptimized.full);
+        session.release(List.of(unoptimized));
+        assertTrue(session.parse("main.ll", source, optimizer).full);
+    }
+
+    @Test
+    void sharedParseGoesBackWhenTheDiffFails() {
+        String source = PROGRAM + "fun kept" + System.nanoTime() + "() { return 1 }\n";
+        // A second twice() makes the spliced parse give up on its duplicate check.
+        String edited = source + "fun twice(x) { return x }\n";
+        IncrementalParser session = new IncrementalParser();
+        IncrementalParser.Parsed parsed = session.parse("main.ll", source, optimizer);
+        session.release(List.of(parsed));
+        assertThrows(ScriptRuntimeException.class, () -> session.parse("main.ll", edited, optimizer));
+        assertSame(parsed, new IncrementalParser().parse("main.ll", source, optimizer));
+    }
+
+    private String full(String source) {
+        try {
+            List<Parser.Decl> decls = new Parser(new Lexer(source)).parseDeclarations();
+            Map<String, Function> funcs = new LinkedHashMap<>();
+            for (Parser.Decl d : decls) {
+                if (d.function != null) funcs.put(d.name, d.function);
+            }
+            optimizer.optimize(funcs);
+            Resolver.resolve(funcs);
+            return dump(decls);
+        } catch (ScriptRuntimeException e) {
+            return "error " + e.getMessage() + " at " + e.line + ":" + e.col;
+        }
+    }
+
+    private String incremental(IncrementalParser parser, String source) {
+        try {
+            IncrementalParser.Parsed parsed = parser.parse("main.ll", source, optimizer);
+            String out = dump(parsed.decls);
+            parser.release(List.of(parsed));
+            return out;
+        } catch (ScriptRuntimeException e) {
+            return "error " + e.getMessage() + " at " + e.line + ":" + e.col;
+        }
+    }
+
+    private static String readStd() throws IOException {
+        try (InputStream in = IncrementalParserTest.class.getResourceAsStream("/std/std.ll")) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static String dump(List<Parser.Decl> decls) {
+        StringBuilder sb = new StringBuilder();
+        for (Parser.Decl d : decls) {
+            sb.append(d.name).append(' ').append(d.start).append('-').append(d.end)
+                    .append(' ').append(d.endLine).append(':').append(d.endCol).append(' ');
+            if (d.ref != null) {
+                sb.append(d.ref.module).append('.').append(d.ref.name).append(" as ").append(d.ref.alias)
+                        .append(' ').append(d.ref.line).append(':').append(d.ref.col);
+            } else {
+                sb.append(d.function.params);
+                dump(d.function.body, sb, new IdentityHashMap<>());
+                sb.append(Arrays.toString(d.function.paramSlots));
+            }
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+    // The node's fields that come from the source, recursively; caches and
+    // specialization state are left out.
+    private static void dump(Object o, StringBuilder sb, IdentityHashMap<Object, Boolean> seen) {
+        if (o instanceof List<?> list) {
+            sb.append('[');
+            for (Object item : list) dump(item, sb, seen);
+            sb.append(']');
+            return;
+        }
+        if (!(o instanceof Expr) && !(o instanceof Stmt) && !(o instanceof DictKey)) {
+            sb.append(o).append(' ');
+            return;
+        }
+        if (seen.put(o, true) != null) {
+            sb.append('@');
+            return;
+        }
+        sb.append(o.getClass().getSimpleName()).append('{');
+        List<Field> fields = new ArrayList<>();
+        for (Class<?> c = o.getClass(); c != Object.class; c = c.getSuperclass()) {
+            fields.addAll(Arrays.asList(c.getDeclaredFields()));
+        }
+        for (Field f : fields) {
+            Class<?> t = f.getType();
+            boolean source = t == int.class || t == double.class || t == boolean.class || t == String.class
+                    || t == TokenType.class || List.class.isAssignableFrom(t)
+                    || Expr.class.isAssignableFrom(t) || Stmt.class.isAssignableFrom(t);
+            if (Modifier.isStatic(f.getModifiers()) || !source
+                    || f.getName().equals("version") || f.getName().equals("state")) {
+                continue;
+            }
+            f.setAccessible(true);
+            sb.append(f.getName()).append('=');
+            try {
+                dump(f.get(o), sb, seen);
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        sb.append('}');
+    }
+}
@@ -0,0 +1,107 @@
+package analyze;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs every std intrinsic and its std.ll definition on the same arguments and
+ * expects the same result, the same error and the same arguments afterwards.
+ */
+class IntrinsicsTest {
+    private static final List<String> ONE_ARG = List.of(
+            "[]", "[3, 1, 2]", "[1, 1, 1]", "[2.5, -1, 1000000000, 0]", "[5]",
+            "[\"b\", \"a\", \"c\", \"a\"]", "[\"b\", 1, \"a\"]", "[true, false]", "[[2], [1]]", "[null, 1]",
+            "[<\"a\": 1>]", "\"hello World\"", "\"\u00C4bC zZ\"", "\"\"", "\"a\"", "5", "null", "true", "<\"a\": 1, \"b\": 2>");
+    private static final List<String> NEEDLES = List.of("1", "2", "\"a\"", "\"lo\"", "null", "true", "[1]", "0");
+
+    @Test
+    void everyIntrinsicMatchesItsScriptDefinition() throws IOException {
+        String std = readStd();
+        FunctionTable reference = load(std, false);
+        FunctionTable intrinsic = load(std, true);
+        Map<String, Integer> arities = Intrinsics.arities("std");
+        assertTrue(arities.size() >= 9, "std registers its intrinsics");
+        for (Map.Entry<String, Integer> e : arities.entrySet()) {
+            String name = e.getKey();
+            assertTrue(intrinsic.get(name).intrinsic != null, name + " has an intrinsic attached");
+            for (List<String> args : arguments(e.getValue())) {
+                assertEquals(call(reference, name, args), call(intrinsic, name, args), name + args);
+            }
+        }
+    }
+
+    private static List<List<String>> arguments(int arity) {
+        List<List<String>> out = new ArrayList<>();
+        for (String a : ONE_ARG) {
+            if (arity == 1) {
+                out.add(List.of(a));
+            } else {
+                for (String b : NEEDLES) out.add(List.of(a, b));
+            }
+        }
+        return out;
+    }
+
+    // Result, or error, and the arguments afterwards, in a form that tells types apart.
+    private static String call(FunctionTable funcs, String name, List<String> sources) {
+        Env env = new Env(new RunContext(funcs), null);
+        List<Object> values = new ArrayList<>();
+        List<Expr> args = new ArrayList<>();
+        for (String src : sources) {
+            Object v = new Parser(new Lexer(src)).parseExpression().eval(env);
+            values.add(v);
+            args.add(new ConstExpr(v));
+        }
+        String result;
+        try {
+            result = render(env.call(name, args, 1, 1));
+        } catch (ScriptRuntimeException | TypeErrorException e) {
+            result = "error: " + e.getMessage();
+        }
+        StringBuilder after = new StringBuilder(result);
+        for (Object v : values) after.append(" | ").append(render(v));
+        return after.toString();
+    }
+
+    private static String render(Object v) {
+        if (v instanceof CharSequence s) return "\"" + s + "\"";
+        if (v instanceof List<?> list) {
+            List<String> items = new ArrayList<>();
+            for (Object item : list) items.add(render(item));
+            return items.toString();
+        }
+        if (v instanceof Map<?, ?> map) {
+            List<String> entries = new ArrayList<>();
+            for (Map.Entry<?, ?> e : map.entrySet()) entries.add(e.getKey() + ": " + render(e.getValue()));
+            return "{" + String.join(", ", entries) + "}";
+        }
+        return v == null ? "null" : v.getClass().getSimpleName() + " " + v;
+    }
+
+    private static FunctionTable load(String std, boolean intrinsics) {
+        Map<String, Function> funcs = new Parser(new Lexer(std)).parseProgram();
+        new Optimizer().optimize(funcs);
+        Resolver.resolve(funcs);
+        if (intrinsics) {
+            Intrinsics.link("std", funcs);
+        }
+        FunctionTable table = new FunctionTable(funcs);
+        Linker.link(table);
+        return table;
+    }
+
+    private static String readStd() throws IOException {
+        try (InputStream in = IntrinsicsTest.class.getResourceAsStream("/std/std.ll")) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+}
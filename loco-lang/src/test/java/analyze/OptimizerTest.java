@@ -0,0 +1,49 @@
+package analyze;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs the default passes over small programs and checks the tree they leave.
+ */
+class OptimizerTest {
+    private static String optimize(String program) {
+        Map<String, Function> funcs = new Parser(new Lexer(program)).parseProgram();
+        new Optimizer().optimize(funcs);
+        return AstPrinter.print(funcs);
+    }
+
+    @Test
+    void foldsConstantOperations() {
+        String tree = optimize("fun main() { println(1 + 2) }");
+        assertTrue(tree.contains("println(3"), tree);
+    }
+
+    @Test
+    void leavesFailingConstantOperationsToRunTime() {
+        String tree = optimize("""
+                fun main() {
+                    if (x) {
+                        println(1 - "ab")
+                    }
+                }
+                """);
+        assertTrue(tree.contains("(1 - \"ab\")"), tree);
+    }
+
+    @Test
+    void failingConstantOperationsInDeadCodeDoNotFailTheLoad() {
+        String tree = optimize("""
+                fun main() {
+                    if (false) {
+                        println(1 - "ab")
+                    }
+                    println(2)
+                }
+                """);
+        assertTrue(tree.contains("println(2"), tree);
+    }
+}